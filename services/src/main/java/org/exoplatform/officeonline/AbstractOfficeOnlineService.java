@@ -1,5 +1,6 @@
 package org.exoplatform.officeonline;
 
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
@@ -7,11 +8,8 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.Key;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Base64;
 import java.util.List;
 
-import javax.crypto.Cipher;
 import javax.jcr.Item;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
@@ -54,109 +52,121 @@ import org.exoplatform.services.wcm.core.NodetypeConstant;
 public abstract class AbstractOfficeOnlineService implements Startable {
 
   /** The Constant LOG. */
-  protected static final Log             LOG                       = ExoLogger.getLogger(AbstractOfficeOnlineService.class);
+  protected static final Log                     LOG                       = ExoLogger.getLogger(AbstractOfficeOnlineService.class);
 
   /** The Constant UTF_8. */
-  protected static final String          UTF_8                     = "utf-8";
+  protected static final String                  UTF_8                     = "utf-8";
 
   /** The Constant KEY_CACHE_NAME. */
-  public static final String             KEY_CACHE_NAME            = "officeonline.key.Cache".intern();
+  public static final String                     KEY_CACHE_NAME            = "officeonline.key.Cache".intern();
 
-  /** The Constant SECRET_KEY. */
-  protected static final String          SECRET_KEY                = "secret-key";
+  /** The Constant TOKEN_CACHE_NAME. */
+  public static final String                     TOKEN_CACHE_NAME          = "officeonline.token.Cache".intern();
 
-  /** The Constant ALGORITHM. */
-  protected static final String          ALGORITHM                 = "AES";
+  /** The Constant IDENTITY_CACHE_NAME. */
+  public static final String                     IDENTITY_CACHE_NAME       = "officeonline.identity.Cache".intern();
 
-  /** The Constant TOKEN_DELIMITER. */
-  protected static final String          TOKEN_DELIMITER           = "+";
+  /** The Constant SECRET_KEY. */
+  protected static final String                  SECRET_KEY                = "secret-key";
 
-  /** The Constant TOKEN_DELIMITER_PATTERN. */
-  protected static final String          TOKEN_DELIMITER_PATTERN   = "\\+";
+  /** The Constant ALGORITHM. */
+  protected static final String                  ALGORITHM                 = "AES";
 
   /** The Constant TOKEN_EXPIRES. */
-  protected static final long            TOKEN_EXPIRES             = 30 * 60000;
+  protected static final long                    TOKEN_EXPIRES             = 30 * 60000;
 
   /** The Constant JCR_CONTENT. */
-  protected static final String          JCR_CONTENT               = "jcr:content";
+  protected static final String                  JCR_CONTENT               = "jcr:content";
 
   /** The Constant WOPITESTX. */
-  protected static final String          WOPITESTX                 = "wopitestx";
+  protected static final String                  WOPITESTX                 = "wopitestx";
 
   /** The Constant WOPITEST. */
-  protected static final String          WOPITEST                  = "wopitest";
+  protected static final String                  WOPITEST                  = "wopitest";
 
   /** The Constant JCR_DATA. */
-  protected static final String          JCR_DATA                  = "jcr:data";
+  protected static final String                  JCR_DATA                  = "jcr:data";
 
   /** The Constant EXO_LAST_MODIFIER. */
-  protected static final String          EXO_LAST_MODIFIER         = "exo:lastModifier";
+  protected static final String                  EXO_LAST_MODIFIER         = "exo:lastModifier";
 
   /** The Constant EXO_LAST_MODIFIED_DATE. */
-  protected static final String          EXO_LAST_MODIFIED_DATE    = "exo:lastModifiedDate";
+  protected static final String                  EXO_LAST_MODIFIED_DATE    = "exo:lastModifiedDate";
 
   /** The Constant EXO_DATE_MODIFIED. */
-  protected static final String          EXO_DATE_MODIFIED         = "exo:dateModified";
+  protected static final String                  EXO_DATE_MODIFIED         = "exo:dateModified";
 
   /** The Constant JCR_LAST_MODIFIED. */
-  protected static final String          JCR_LAST_MODIFIED         = "jcr:lastModified";
+  protected static final String                  JCR_LAST_MODIFIED         = "jcr:lastModified";
 
   /** The Constant MIX_VERSIONABLE. */
-  protected static final String          MIX_VERSIONABLE           = "mix:versionable";
+  protected static final String                  MIX_VERSIONABLE           = "mix:versionable";
 
   /** The Constant EXO_OWNER. */
-  protected static final String          EXO_OWNER                 = "exo:owner";
+  protected static final String                  EXO_OWNER                 = "exo:owner";
 
   /** The Constant EXO_TITLE. */
-  protected static final String          EXO_TITLE                 = "exo:title";
+  protected static final String                  EXO_TITLE                 = "exo:title";
 
   /** The Constant EXO_PRIVILEGEABLE. */
-  protected static final String          EXO_PRIVILEGEABLE         = "exo:privilegeable";
+  protected static final String                  EXO_PRIVILEGEABLE         = "exo:privilegeable";
 
   /** The Constant JCR_MIME_TYPE. */
-  protected static final String          JCR_MIME_TYPE             = "jcr:mimeType";
+  protected static final String                  JCR_MIME_TYPE             = "jcr:mimeType";
 
   /** The Constant EXO_NAME. */
-  protected static final String          EXO_NAME                  = "exo:name";
+  protected static final String                  EXO_NAME                  = "exo:name";
 
   /** The Constant PATH. */
-  protected static final String          PATH                      = "path";
+  protected static final String                  PATH                      = "path";
 
   /** The Constant MSOFFICE_USER_PREFERENCES. */
-  protected static final String          MSOFFICE_USER_PREFERENCES = "msoffice:userPreferences";
+  protected static final String                  MSOFFICE_USER_PREFERENCES = "msoffice:userPreferences";
 
   /** The Constant MSOFFICE_FILE. */
-  protected static final String          MSOFFICE_FILE             = "msoffice:file";
+  protected static final String                  MSOFFICE_FILE             = "msoffice:file";
 
   /** The Constant MSOFFICE_PREFERENCES. */
-  protected static final String          MSOFFICE_PREFERENCES      = "msoffice:preferences";
+  protected static final String                  MSOFFICE_PREFERENCES      = "msoffice:preferences";
 
   /** Cache of Editing documents. */
-  protected final ExoCache<String, Key>  keyCache;
+  protected final ExoCache<String, Key>          keyCache;
+
+  /** The access token codec. */
+  protected final AccessTokenCodec               tokenCodec;
+
+  /** The decoded access tokens cache. */
+  protected final ExoCache<String, DecodedToken> tokenCache;
+
+  /** The user identities created by the authenticator. */
+  protected final ExoCache<String, Identity>     identityCache;
 
   /** The session providers. */
-  protected final SessionProviderService sessionProviders;
+  protected final SessionProviderService         sessionProviders;
 
   /** The user ACL. */
-  protected final UserACL                userACL;
+  protected final UserACL                        userACL;
 
   /** The jcr service. */
-  protected final RepositoryService      jcrService;
+  protected final RepositoryService              jcrService;
 
   /** The organization. */
-  protected final OrganizationService    organization;
+  protected final OrganizationService            organization;
 
   /** The document service. */
-  protected final DocumentService        documentService;
+  protected final DocumentService                documentService;
 
   /** The identity registry. */
-  protected final IdentityRegistry       identityRegistry;
+  protected final IdentityRegistry               identityRegistry;
 
   /** The authenticator. */
-  protected final Authenticator          authenticator;
+  protected final Authenticator                  authenticator;
 
   /** The node finder. */
-  protected NodeFinder                   nodeFinder;
+  protected NodeFinder                           nodeFinder;
+
+  /** The default workspace name, resolved on first use. */
+  private volatile String                        defaultWorkspace;
 
   /**
    * Instantiates a new abstract office online service.
@@ -185,6 +195,9 @@ public abstract class AbstractOfficeOnlineService implements Startable {
     this.organization = organization;
     this.documentService = documentService;
     this.keyCache = cacheService.getCacheInstance(KEY_CACHE_NAME);
+    this.tokenCodec = new AccessTokenCodec(ALGORITHM);
+    this.tokenCache = cacheService.getCacheInstance(TOKEN_CACHE_NAME);
+    this.identityCache = cacheService.getCacheInstance(IDENTITY_CACHE_NAME);
     this.userACL = userACL;
     this.identityRegistry = identityRegistry;
     this.authenticator = authenticator;
@@ -219,12 +232,28 @@ public abstract class AbstractOfficeOnlineService implements Startable {
    */
   protected Session getUserSession(String workspace) throws RepositoryException {
     if (workspace == null) {
-      workspace = jcrService.getCurrentRepository().getConfiguration().getDefaultWorkspaceName();
+      workspace = getDefaultWorkspace();
     }
     SessionProvider sp = sessionProviders.getSessionProvider(null);
     return sp.getSession(workspace, jcrService.getCurrentRepository());
   }
 
+  /**
+   * Gets the default workspace name. It doesn't change at runtime, thus it's
+   * read from the repository configuration once.
+   *
+   * @return the default workspace name
+   * @throws RepositoryException the repository exception
+   */
+  protected String getDefaultWorkspace() throws RepositoryException {
+    String workspace = defaultWorkspace;
+    if (workspace == null) {
+      workspace = jcrService.getCurrentRepository().getConfiguration().getDefaultWorkspaceName();
+      defaultWorkspace = workspace;
+    }
+    return workspace;
+  }
+
   /**
    * Node content.
    *
@@ -249,8 +278,13 @@ public abstract class AbstractOfficeOnlineService implements Startable {
       Node content = nodeContent(node);
 
       final String mimeType = content.getProperty(JCR_MIME_TYPE).getString();
-      // data stream will be closed when EoF will be reached
-      final InputStream data = new AutoCloseInputStream(content.getProperty(JCR_DATA).getStream());
+      final Property dataProperty = content.getProperty(JCR_DATA);
+      final long size = dataProperty.getLength();
+      InputStream stream = dataProperty.getStream();
+      // File based value storage gives a file stream: keep it as is to let
+      // consumers use its channel, it's closed by them. Other streams will be
+      // closed when EoF will be reached.
+      final InputStream data = stream instanceof FileInputStream ? stream : new AutoCloseInputStream(stream);
       final String filename = nodeTitle(node);
 
       return new DocumentContent() {
@@ -270,9 +304,14 @@ public abstract class AbstractOfficeOnlineService implements Startable {
           return data;
         }
 
+        @Override
+        public long getSize() {
+          return size;
+        }
+
         @Override
         public String getVersion() throws RepositoryException {
-          return node.isNodeType(MIX_VERSIONABLE) ? node.getBaseVersion().getName() : null;
+          return itemVersion(node);
         }
       };
     } catch (RepositoryException e) {
@@ -281,6 +320,26 @@ public abstract class AbstractOfficeOnlineService implements Startable {
     }
   }
 
+  /**
+   * Gets the item version of the file: the base version name followed by the
+   * content modification time. Content changed without a check in (not
+   * versionable file, edits in ECMS or WebDAV) changes the item version too.
+   *
+   * @param node the node
+   * @return the item version, or <code>null</code> if neither the base version
+   *         nor the modification time is known
+   * @throws RepositoryException the repository exception
+   */
+  protected String itemVersion(Node node) throws RepositoryException {
+    String version = node.isNodeType(MIX_VERSIONABLE) ? node.getBaseVersion().getName() : null;
+    Node content = nodeContent(node);
+    if (content.hasProperty(JCR_LAST_MODIFIED)) {
+      long lastModified = content.getProperty(JCR_LAST_MODIFIED).getDate().getTimeInMillis();
+      return version != null ? version + '-' + lastModified : String.valueOf(lastModified);
+    }
+    return version;
+  }
+
   /**
    * Platform url.
    *
@@ -304,6 +363,18 @@ public abstract class AbstractOfficeOnlineService implements Startable {
     return platformUrl;
   }
 
+  /**
+   * Gets the platform url.
+   *
+   * @param schema the schema
+   * @param host the host
+   * @param port the port
+   * @return the platform url
+   */
+  public String getPlatformUrl(String schema, String host, int port) {
+    return platformUrl(schema, host, port).toString();
+  }
+
   /**
    * Platform REST URL.
    *
@@ -454,26 +525,8 @@ public abstract class AbstractOfficeOnlineService implements Startable {
    */
   public AccessToken generateAccessToken(EditorConfig.Builder configBuilder) throws OfficeOnlineException {
     try {
-      Key key = keyCache.get(SECRET_KEY);
-      Cipher chiper = Cipher.getInstance(ALGORITHM);
-      chiper.init(Cipher.ENCRYPT_MODE, key);
-
       long expires = System.currentTimeMillis() + TOKEN_EXPIRES;
-
-      StringBuilder builder = new StringBuilder().append(configBuilder.workspace())
-                                                 .append(TOKEN_DELIMITER)
-                                                 .append(configBuilder.userId())
-                                                 .append(TOKEN_DELIMITER)
-                                                 .append(configBuilder.fileId())
-                                                 .append(TOKEN_DELIMITER)
-                                                 .append(expires)
-                                                 .append(TOKEN_DELIMITER)
-                                                 .append(configBuilder.baseUrl());
-      configBuilder.permissions().forEach(permission -> {
-        builder.append(TOKEN_DELIMITER).append(permission.getShortName());
-      });
-      byte[] encrypted = chiper.doFinal(builder.toString().getBytes());
-      String token = new String(Base64.getUrlEncoder().encode(encrypted));
+      String token = tokenCodec.encode(keyCache.get(SECRET_KEY), configBuilder, expires);
       return new AccessToken(token, expires);
     } catch (Exception e) {
       LOG.error("Error occured while generating token. {}", e.getMessage());
@@ -491,7 +544,7 @@ public abstract class AbstractOfficeOnlineService implements Startable {
    */
   public Node getNode(String workspace, String path) throws RepositoryException {
     if (workspace == null) {
-      workspace = jcrService.getCurrentRepository().getConfiguration().getDefaultWorkspaceName();
+      workspace = getDefaultWorkspace();
     }
     SessionProvider sp = sessionProviders.getSessionProvider(null);
     Session userSession = sp.getSession(workspace, jcrService.getCurrentRepository());
@@ -503,47 +556,40 @@ public abstract class AbstractOfficeOnlineService implements Startable {
   }
 
   /**
-   * Builds the editor config.
+   * Builds the editor config. Decoded tokens are cached until they expire or
+   * the secret key changes, thus the token is decrypted once per editor
+   * session.
    *
    * @param token the access token
    * @return the editor config
    * @throws OfficeOnlineException the office online exception
    */
   public EditorConfig buildEditorConfig(String token) throws OfficeOnlineException {
-    String decryptedToken = "";
+    Key key = keyCache.get(SECRET_KEY);
+    long now = System.currentTimeMillis();
+    DecodedToken decoded = tokenCache.get(token);
+    if (decoded != null) {
+      if (decoded.isValid(key, now)) {
+        return decoded.getConfig();
+      }
+      if (decoded.isValid(decoded.getKey(), now)) {
+        // the secret key was changed, all decoded tokens are stale
+        tokenCache.clearCache();
+      } else {
+        tokenCache.remove(token);
+      }
+    }
+    EditorConfig config;
     try {
-      Key key = keyCache.get(SECRET_KEY);
-      Cipher chiper = Cipher.getInstance(ALGORITHM);
-      chiper.init(Cipher.DECRYPT_MODE, key);
-      byte[] decoded = Base64.getUrlDecoder().decode(token.getBytes());
-      decryptedToken = new String(chiper.doFinal(decoded));
-    } catch (Exception e) {
+      config = tokenCodec.decode(key, token);
+    } catch (OfficeOnlineException e) {
       LOG.error("Error occured while decoding/decrypting accessToken. {}", e.getMessage());
-      throw new OfficeOnlineException("Cannot decode/decrypt accessToken");
+      throw e;
     }
-
-    List<Permissions> permissions = new ArrayList<>();
-    List<String> values = Arrays.asList(decryptedToken.split(TOKEN_DELIMITER_PATTERN));
-    if (values.size() > 4) {
-      String workspace = values.get(0);
-      if (workspace.equals("null")) {
-        workspace = null;
-      }
-      String userId = values.get(1);
-      String fileId = values.get(2);
-      long expires = Long.parseLong(values.get(3));
-      String baseUrl = values.get(4);
-      values.stream().skip(5).forEach(value -> permissions.add(Permissions.fromShortName(value)));
-      return new EditorConfig.Builder().userId(userId)
-                                       .fileId(fileId)
-                                       .workspace(workspace)
-                                       .baseUrl(baseUrl)
-                                       .permissions(permissions)
-                                       .accessToken(new AccessToken(token, expires))
-                                       .build();
-    } else {
-      throw new OfficeOnlineException("Decrypted token doesn't contain all required parameters");
+    if (config.getAccessToken().getExpires() > now) {
+      tokenCache.put(token, new DecodedToken(config, key));
     }
+    return config;
   }
 
   /**
@@ -581,24 +627,32 @@ public abstract class AbstractOfficeOnlineService implements Startable {
   }
 
   /**
-   * Find or create user identity.
+   * Find or create user identity. Identities created by the authenticator are
+   * cached for the access token lifetime, thus token authenticated requests
+   * don't read the user memberships from the organization storage each time.
    *
    * @param userId the user id
    * @return the identity can be null if not found and cannot be created via
    *         current authenticator
    */
-  protected Identity userIdentity(String userId) {
+  public Identity userIdentity(String userId) {
     Identity userIdentity = identityRegistry.getIdentity(userId);
     if (userIdentity == null) {
-      // We create user identity by authenticator, but not register it in the
-      // registry
-      try {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("User identity not registered, trying to create it for: " + userId);
+      userIdentity = identityCache.get(userId);
+      if (userIdentity == null) {
+        // We create user identity by authenticator, but not register it in the
+        // registry
+        try {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("User identity not registered, trying to create it for: " + userId);
+          }
+          userIdentity = authenticator.createIdentity(userId);
+          if (userIdentity != null) {
+            identityCache.put(userId, userIdentity);
+          }
+        } catch (Exception e) {
+          LOG.warn("Failed to create user identity: " + userId, e);
         }
-        userIdentity = authenticator.createIdentity(userId);
-      } catch (Exception e) {
-        LOG.warn("Failed to create user identity: " + userId, e);
       }
     }
     return userIdentity;
@@ -672,7 +726,7 @@ public abstract class AbstractOfficeOnlineService implements Startable {
    * @param mixin the mixin
    * @throws RepositoryException the repository exception
    */
-  private void addMixin(Node node, String mixin) throws RepositoryException {
+  protected void addMixin(Node node, String mixin) throws RepositoryException {
     Session systemSession = jcrService.getCurrentRepository().getSystemSession(node.getSession().getWorkspace().getName());
     NodeImpl systemNode = (NodeImpl) systemSession.getItem(node.getPath());
     systemNode.addMixin(mixin);
@@ -713,5 +767,56 @@ public abstract class AbstractOfficeOnlineService implements Startable {
     }
     return null;
   }
- 
+
+  /**
+   * The decoded access token with the key used to decrypt it.
+   */
+  protected static class DecodedToken {
+
+    /** The config. */
+    private final EditorConfig config;
+
+    /** The key. */
+    private final Key          key;
+
+    /**
+     * Instantiates a new decoded token.
+     *
+     * @param config the config
+     * @param key the key
+     */
+    protected DecodedToken(EditorConfig config, Key key) {
+      this.config = config;
+      this.key = key;
+    }
+
+    /**
+     * Gets the config.
+     *
+     * @return the config
+     */
+    protected EditorConfig getConfig() {
+      return config;
+    }
+
+    /**
+     * Gets the key.
+     *
+     * @return the key
+     */
+    protected Key getKey() {
+      return key;
+    }
+
+    /**
+     * Checks if the token is not expired and was decrypted with given key.
+     *
+     * @param currentKey the current key
+     * @param now the current time
+     * @return true, if is valid
+     */
+    protected boolean isValid(Key currentKey, long now) {
+      return config.getAccessToken().getExpires() > now && (key == currentKey || key.equals(currentKey));
+    }
+  }
 }
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import org.exoplatform.officeonline.exception.OfficeOnlineException;
+
+/**
+ * Encodes editor configs to access tokens and decodes them back. Tokens are
+ * encrypted with the secret key and Base64 (URL safe) encoded. Ciphers are
+ * kept initialized per thread and re-initialized only when the key changes.
+ * <br>
+ * Current token layout (version 1) is binary:
+ * <pre>
+ * version (1 byte) | expires (8 bytes) | permissions bitmask (1 byte) |
+ * workspace | userId | fileId | baseUrl
+ * </pre>
+ * where each string is written as its UTF-8 length (2 bytes, 0xFFFF for
+ * <code>null</code>) followed by its UTF-8 bytes. Legacy tokens (plain text
+ * with values delimited by '+') are still decoded.
+ */
+public class AccessTokenCodec {
+
+  /** The Constant VERSION_1. */
+  public static final byte                 VERSION_1        = 1;
+
+  /** The Constant LEGACY_DELIMITER. */
+  protected static final char              LEGACY_DELIMITER = '+';
+
+  /** The Constant NULL_LENGTH. */
+  protected static final int               NULL_LENGTH      = 0xFFFF;
+
+  /** The Constant HEADER_LENGTH: version, expires and permissions. */
+  protected static final int               HEADER_LENGTH    = 1 + 8 + 1;
+
+  /** The Constant PERMISSIONS. */
+  protected static final Permissions[]     PERMISSIONS      = Permissions.values();
+
+  /** The algorithm. */
+  protected final String                   algorithm;
+
+  /** The ciphers of current thread. */
+  protected final ThreadLocal<CipherState> ciphers          = ThreadLocal.withInitial(CipherState::new);
+
+  /**
+   * Ciphers initialized for a key and a buffer for decrypted tokens.
+   */
+  protected static class CipherState {
+
+    /** The encrypt key. */
+    Key    encryptKey;
+
+    /** The encryptor. */
+    Cipher encryptor;
+
+    /** The decrypt key. */
+    Key    decryptKey;
+
+    /** The decryptor. */
+    Cipher decryptor;
+
+    /** The buffer. */
+    byte[] buffer = new byte[512];
+  }
+
+  /**
+   * Instantiates a new access token codec.
+   *
+   * @param algorithm the cipher algorithm
+   */
+  public AccessTokenCodec(String algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * Encodes the editor config to an access token.
+   *
+   * @param key the secret key
+   * @param config the config builder
+   * @param expires the token expiration time
+   * @return the access token string
+   * @throws OfficeOnlineException if the token cannot be encrypted
+   */
+  public String encode(Key key, EditorConfig.Builder config, long expires) throws OfficeOnlineException {
+    byte[] workspace = bytes(config.workspace());
+    byte[] userId = bytes(config.userId());
+    byte[] fileId = bytes(config.fileId());
+    byte[] baseUrl = bytes(config.baseUrl());
+    byte[] plain = new byte[HEADER_LENGTH + length(workspace) + length(userId) + length(fileId) + length(baseUrl)];
+    plain[0] = VERSION_1;
+    for (int i = 0; i < 8; i++) {
+      plain[1 + i] = (byte) (expires >>> (56 - 8 * i));
+    }
+    int mask = 0;
+    if (config.permissions() != null) {
+      for (Permissions permission : config.permissions()) {
+        mask |= 1 << permission.ordinal();
+      }
+    }
+    plain[9] = (byte) mask;
+    int pos = HEADER_LENGTH;
+    pos = write(plain, pos, workspace);
+    pos = write(plain, pos, userId);
+    pos = write(plain, pos, fileId);
+    write(plain, pos, baseUrl);
+    try {
+      return Base64.getUrlEncoder().encodeToString(encryptor(key).doFinal(plain));
+    } catch (GeneralSecurityException e) {
+      throw new OfficeOnlineException("Couldn't encrypt token: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Decodes the access token to editor config.
+   *
+   * @param key the secret key
+   * @param token the access token string
+   * @return the editor config
+   * @throws OfficeOnlineException if the token cannot be decrypted or it's
+   *           malformed
+   */
+  public EditorConfig decode(Key key, String token) throws OfficeOnlineException {
+    CipherState state = ciphers.get();
+    int length;
+    try {
+      byte[] encrypted = Base64.getUrlDecoder().decode(token);
+      Cipher decryptor = decryptor(state, key);
+      int outputSize = decryptor.getOutputSize(encrypted.length);
+      if (state.buffer.length < outputSize) {
+        state.buffer = new byte[outputSize];
+      }
+      length = decryptor.doFinal(encrypted, 0, encrypted.length, state.buffer, 0);
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      throw new OfficeOnlineException("Cannot decode/decrypt accessToken: " + e.getMessage());
+    }
+    byte[] plain = state.buffer;
+    if (length > 0 && plain[0] == VERSION_1) {
+      return decodeBinary(plain, length, token);
+    }
+    return decodeLegacy(new String(plain, 0, length, StandardCharsets.UTF_8), token);
+  }
+
+  /**
+   * Decodes the binary (version 1) token.
+   *
+   * @param plain the decrypted bytes
+   * @param length the decrypted bytes length
+   * @param token the access token string
+   * @return the editor config
+   * @throws OfficeOnlineException if the token is malformed
+   */
+  protected EditorConfig decodeBinary(byte[] plain, int length, String token) throws OfficeOnlineException {
+    if (length < HEADER_LENGTH) {
+      throw new OfficeOnlineException("Decrypted token doesn't contain all required parameters");
+    }
+    long expires = 0;
+    for (int i = 1; i < 9; i++) {
+      expires = (expires << 8) | (plain[i] & 0xFF);
+    }
+    int mask = plain[9] & 0xFF;
+    List<Permissions> permissions = new ArrayList<>(2);
+    for (Permissions permission : PERMISSIONS) {
+      if ((mask & (1 << permission.ordinal())) != 0) {
+        permissions.add(permission);
+      }
+    }
+    String[] values = new String[4];
+    int pos = HEADER_LENGTH;
+    for (int i = 0; i < values.length; i++) {
+      if (pos + 2 > length) {
+        throw new OfficeOnlineException("Decrypted token doesn't contain all required parameters");
+      }
+      int size = ((plain[pos] & 0xFF) << 8) | (plain[pos + 1] & 0xFF);
+      pos += 2;
+      if (size != NULL_LENGTH) {
+        if (pos + size > length) {
+          throw new OfficeOnlineException("Decrypted token doesn't contain all required parameters");
+        }
+        values[i] = new String(plain, pos, size, StandardCharsets.UTF_8);
+        pos += size;
+      }
+    }
+    return new EditorConfig.Builder().workspace(values[0])
+                                     .userId(values[1])
+                                     .fileId(values[2])
+                                     .baseUrl(values[3])
+                                     .permissions(permissions)
+                                     .accessToken(new AccessToken(token, expires))
+                                     .build();
+  }
+
+  /**
+   * Decodes the legacy token: workspace, userId, fileId, expires, baseUrl and
+   * permission short names delimited by '+'.
+   *
+   * @param plain the decrypted text
+   * @param token the access token string
+   * @return the editor config
+   * @throws OfficeOnlineException if the token is malformed
+   */
+  protected EditorConfig decodeLegacy(String plain, String token) throws OfficeOnlineException {
+    String[] values = new String[5];
+    int start = 0;
+    for (int i = 0; i < values.length; i++) {
+      int end = plain.indexOf(LEGACY_DELIMITER, start);
+      if (end < 0) {
+        if (i < values.length - 1) {
+          throw new OfficeOnlineException("Decrypted token doesn't contain all required parameters");
+        }
+        end = plain.length();
+      }
+      values[i] = plain.substring(start, end);
+      start = end + 1;
+    }
+    List<Permissions> permissions = new ArrayList<>(2);
+    while (start < plain.length()) {
+      int end = plain.indexOf(LEGACY_DELIMITER, start);
+      if (end < 0) {
+        end = plain.length();
+      }
+      permissions.add(Permissions.fromShortName(plain.substring(start, end)));
+      start = end + 1;
+    }
+    long expires;
+    try {
+      expires = Long.parseLong(values[3]);
+    } catch (NumberFormatException e) {
+      throw new OfficeOnlineException("Decrypted token contains wrong expiration time");
+    }
+    String workspace = values[0];
+    if (workspace.equals("null")) {
+      workspace = null;
+    }
+    return new EditorConfig.Builder().workspace(workspace)
+                                     .userId(values[1])
+                                     .fileId(values[2])
+                                     .baseUrl(values[4])
+                                     .permissions(permissions)
+                                     .accessToken(new AccessToken(token, expires))
+                                     .build();
+  }
+
+  /**
+   * Gets the encryptor of current thread initialized for given key.
+   *
+   * @param key the key
+   * @return the cipher
+   * @throws GeneralSecurityException the general security exception
+   */
+  protected Cipher encryptor(Key key) throws GeneralSecurityException {
+    CipherState state = ciphers.get();
+    if (state.encryptor == null) {
+      state.encryptor = Cipher.getInstance(algorithm);
+    }
+    if (state.encryptKey != key && (state.encryptKey == null || !state.encryptKey.equals(key))) {
+      state.encryptor.init(Cipher.ENCRYPT_MODE, key);
+      state.encryptKey = key;
+    }
+    return state.encryptor;
+  }
+
+  /**
+   * Gets the decryptor of current thread initialized for given key.
+   *
+   * @param state the cipher state of current thread
+   * @param key the key
+   * @return the cipher
+   * @throws GeneralSecurityException the general security exception
+   */
+  protected Cipher decryptor(CipherState state, Key key) throws GeneralSecurityException {
+    if (state.decryptor == null) {
+      state.decryptor = Cipher.getInstance(algorithm);
+    }
+    if (state.decryptKey != key && (state.decryptKey == null || !state.decryptKey.equals(key))) {
+      state.decryptor.init(Cipher.DECRYPT_MODE, key);
+      state.decryptKey = key;
+    }
+    return state.decryptor;
+  }
+
+  /**
+   * Gets UTF-8 bytes of a string.
+   *
+   * @param value the value
+   * @return the bytes or <code>null</code>
+   * @throws OfficeOnlineException if the value is too long
+   */
+  private static byte[] bytes(String value) throws OfficeOnlineException {
+    if (value == null) {
+      return null;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length >= NULL_LENGTH) {
+      throw new OfficeOnlineException("Token value is too long");
+    }
+    return bytes;
+  }
+
+  /**
+   * Gets the length of a string written to a token.
+   *
+   * @param bytes the bytes
+   * @return the length
+   */
+  private static int length(byte[] bytes) {
+    return 2 + (bytes != null ? bytes.length : 0);
+  }
+
+  /**
+   * Writes a string to a token.
+   *
+   * @param plain the token bytes
+   * @param pos the position
+   * @param bytes the string bytes
+   * @return the next position
+   */
+  private static int write(byte[] plain, int pos, byte[] bytes) {
+    int size = bytes != null ? bytes.length : NULL_LENGTH;
+    plain[pos] = (byte) (size >>> 8);
+    plain[pos + 1] = (byte) size;
+    pos += 2;
+    if (bytes != null) {
+      System.arraycopy(bytes, 0, plain, pos, bytes.length);
+      pos += bytes.length;
+    }
+    return pos;
+  }
+}
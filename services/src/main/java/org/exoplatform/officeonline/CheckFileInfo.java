@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+/**
+ * CheckFileInfo response made of JSON fragments. Each fragment is a list of
+ * JSON object members without the braces, so the fragments built once (static,
+ * per user or per file) can be reused as is and joined with the fragment
+ * built for the request.
+ */
+public class CheckFileInfo {
+
+  /** The fragments. */
+  protected final String[] fragments;
+
+  /**
+   * Instantiates a new check file info.
+   *
+   * @param fragments the fragments
+   */
+  public CheckFileInfo(String... fragments) {
+    this.fragments = fragments;
+  }
+
+  /**
+   * Writes the JSON object.
+   *
+   * @return the JSON string
+   */
+  public String toJSON() {
+    int length = 2;
+    for (String fragment : fragments) {
+      length += fragment.length() + 1;
+    }
+    StringBuilder json = new StringBuilder(length);
+    json.append('{');
+    for (String fragment : fragments) {
+      if (!fragment.isEmpty()) {
+        if (json.length() > 1) {
+          json.append(',');
+        }
+        json.append(fragment);
+      }
+    }
+    return json.append('}').toString();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String toString() {
+    return toJSON();
+  }
+
+  /**
+   * Builder of a JSON fragment.
+   */
+  public static class Fragment {
+
+    /** The JSON. */
+    private final StringBuilder json = new StringBuilder();
+
+    /**
+     * Adds a string member, <code>null</code> value is skipped.
+     *
+     * @param name the name
+     * @param value the value
+     * @return the fragment
+     */
+    public Fragment put(String name, String value) {
+      if (value != null) {
+        name(name);
+        appendString(value);
+      }
+      return this;
+    }
+
+    /**
+     * Adds a boolean member.
+     *
+     * @param name the name
+     * @param value the value
+     * @return the fragment
+     */
+    public Fragment put(String name, boolean value) {
+      name(name);
+      json.append(value);
+      return this;
+    }
+
+    /**
+     * Adds a number member.
+     *
+     * @param name the name
+     * @param value the value
+     * @return the fragment
+     */
+    public Fragment put(String name, long value) {
+      name(name);
+      json.append(value);
+      return this;
+    }
+
+    /**
+     * Builds the fragment.
+     *
+     * @return the fragment string
+     */
+    public String build() {
+      return json.toString();
+    }
+
+    /**
+     * Appends the member name.
+     *
+     * @param name the name
+     */
+    private void name(String name) {
+      if (json.length() > 0) {
+        json.append(',');
+      }
+      appendString(name);
+      json.append(':');
+    }
+
+    /**
+     * Appends the escaped string.
+     *
+     * @param value the value
+     */
+    private void appendString(String value) {
+      json.append('"');
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+        }
+      }
+      json.append('"');
+    }
+  }
+}
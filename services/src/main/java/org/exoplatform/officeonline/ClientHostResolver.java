@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.picocontainer.Startable;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.PropertiesParam;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Resolves the client address and host name of HTTP requests. Forwarding
+ * headers are parsed once per request and trusted only when the request comes
+ * from a trusted proxy. Host names of forwarded client addresses are resolved
+ * by reverse DNS in background threads and cached, a request waits for the
+ * lookup not longer than the configured timeout and gets the IP address then.
+ * Host names of direct clients are taken from the request.
+ */
+public class ClientHostResolver implements Startable {
+
+  /** The Constant LOG. */
+  protected static final Log                                LOG                      = ExoLogger.getLogger(ClientHostResolver.class);
+
+  /** The Constant HOST_CACHE_NAME. */
+  public static final String                                HOST_CACHE_NAME          = "officeonline.host.Cache".intern();
+
+  /** The Constant CLIENT_CONFIGURATION. */
+  protected static final String                             CLIENT_CONFIGURATION     = "client-host-configuration";
+
+  /** The Constant TRUSTED_PROXIES. */
+  protected static final String                             TRUSTED_PROXIES          = "trusted-proxies";
+
+  /** The Constant DNS_TIMEOUT. */
+  protected static final String                             DNS_TIMEOUT              = "dns-timeout";
+
+  /** The Constant DNS_THREADS. */
+  protected static final String                             DNS_THREADS              = "dns-threads";
+
+  /** The Constant ANY_PROXY. */
+  protected static final String                             ANY_PROXY                = "*";
+
+  /** The Constant CLIENT_ADDRESS_ATTRIBUTE. */
+  protected static final String                             CLIENT_ADDRESS_ATTRIBUTE = "officeonline.clientAddress";
+
+  /** The Constant DNS_QUEUE_SIZE. */
+  protected static final int                                DNS_QUEUE_SIZE           = 100;
+
+  /** The Constant FORWARDED_FOR. */
+  protected static final String                             FORWARDED_FOR            = "X-Forwarded-For";
+
+  /** The Constant FORWARDED_HOST. */
+  protected static final String                             FORWARDED_HOST           = "X-Forwarded-Host";
+
+  /**
+   * The Constant FORWARDED_IP_HEADERS, checked after X-Forwarded-For in this
+   * order.
+   */
+  protected static final String[]                           FORWARDED_IP_HEADERS     = { "X-Real-IP", "Proxy-Client-IP",
+      "WL-Proxy-Client-IP", "HTTP_CLIENT_IP", "HTTP_X_FORWARDED_FOR", "HTTP_X_FORWARDED", "HTTP_X_CLUSTER_CLIENT_IP",
+      "HTTP_FORWARDED_FOR", "HTTP_FORWARDED", "REMOTE_ADDR" };
+
+  /** The host names by IP address. */
+  protected final ExoCache<String, String>                  hostCache;
+
+  /** The lookups in progress. */
+  protected final ConcurrentHashMap<String, Future<String>> lookups                  = new ConcurrentHashMap<>();
+
+  /** The trusted proxies, <code>null</code> if any proxy is trusted. */
+  protected final Set<String>                               trustedProxies;
+
+  /** The DNS lookup timeout in milliseconds. */
+  protected final long                                      dnsTimeout;
+
+  /** The DNS lookup executor. */
+  protected final ThreadPoolExecutor                        dnsExecutor;
+
+  /**
+   * Instantiates a new client host resolver.
+   *
+   * @param cacheService the cache service
+   * @param initParams the init params
+   */
+  public ClientHostResolver(CacheService cacheService, InitParams initParams) {
+    this.hostCache = cacheService.getCacheInstance(HOST_CACHE_NAME);
+    PropertiesParam param = initParams != null ? initParams.getPropertiesParam(CLIENT_CONFIGURATION) : null;
+    String proxies = param != null ? param.getProperty(TRUSTED_PROXIES) : null;
+    if (proxies == null || proxies.trim().equals(ANY_PROXY)) {
+      this.trustedProxies = null;
+    } else {
+      Set<String> trusted = new HashSet<>();
+      for (String proxy : proxies.split(",")) {
+        if (!proxy.trim().isEmpty()) {
+          trusted.add(proxy.trim());
+        }
+      }
+      this.trustedProxies = Collections.unmodifiableSet(trusted);
+    }
+    this.dnsTimeout = getLongProperty(param, DNS_TIMEOUT, 300);
+    int threads = (int) Math.max(1, getLongProperty(param, DNS_THREADS, 2));
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.dnsExecutor = new ThreadPoolExecutor(threads,
+                                              threads,
+                                              0L,
+                                              TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(DNS_QUEUE_SIZE),
+                                              r -> {
+                                                Thread thread = new Thread(r,
+                                                                           "officeonline-dns-" + threadNumber.incrementAndGet());
+                                                thread.setDaemon(true);
+                                                return thread;
+                                              });
+  }
+
+  /**
+   * Gets the client IP address of the request.
+   *
+   * @param request the request
+   * @return the client IP address or <code>null</code> if not found
+   */
+  public String getClientIp(HttpServletRequest request) {
+    return getClientAddress(request).getIp();
+  }
+
+  /**
+   * Gets the client host name of the request. The client IP from forwarding
+   * headers is resolved, if the name isn't resolved yet and the lookup takes
+   * longer than the timeout, the IP address is returned. For direct clients
+   * the remote host of the request is returned, no lookup is made.
+   *
+   * @param request the request
+   * @return the client host or <code>null</code> if not found
+   */
+  public String getClientHost(HttpServletRequest request) {
+    ClientAddress client = getClientAddress(request);
+    if (client.getForwardedHost() != null) {
+      // This header contains requested (!) host name, not a client one, but in
+      // case of multi-layer infra where one of proxy hosts stands in front of
+      // actual Document Server and sets this header, it will do the job.
+      return client.getForwardedHost();
+    }
+    if (client.isForwarded()) {
+      return resolveHost(client.getIp());
+    }
+    String host = request.getRemoteHost();
+    return isValidHost(host) ? host : null;
+  }
+
+  /**
+   * Resolves the host name of the IP address by reverse DNS. The names are
+   * cached, concurrent lookups of the same address are made once.
+   *
+   * @param ip the IP address
+   * @return the host name or the IP address if the name cannot be resolved in
+   *         time
+   */
+  public String resolveHost(String ip) {
+    String host = hostCache.get(ip);
+    if (host != null) {
+      return host;
+    }
+    Future<String> lookup;
+    try {
+      lookup = lookups.computeIfAbsent(ip, addr -> dnsExecutor.submit(() -> lookupHost(addr)));
+    } catch (RejectedExecutionException e) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Cannot lookup client hostname by its IP {}: too many lookups", ip);
+      }
+      return ip;
+    }
+    try {
+      return lookup.get(dnsTimeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // the lookup continues and will be cached for next requests
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Client hostname lookup for IP {} takes longer than {} ms", ip, dnsTimeout);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.warn("Cannot obtain client hostname by its IP {}: {}", ip, e.getCause().getMessage());
+    } finally {
+      // the lookup may complete before it was added
+      if (lookup.isDone()) {
+        lookups.remove(ip, lookup);
+      }
+    }
+    return ip;
+  }
+
+  /**
+   * Looks up the host name and caches it. An address without name is cached
+   * as is, thus it's not looked up again until the cache entry expires.
+   *
+   * @param ip the IP address
+   * @return the host name
+   */
+  protected String lookupHost(String ip) {
+    String host = ip;
+    try {
+      String name = InetAddress.getByName(ip).getHostName();
+      // it still may be an IP due to security restriction
+      if (notEmpty(name)) {
+        host = name;
+      }
+    } catch (Exception e) {
+      LOG.warn("Cannot obtain client hostname by its IP {}: {}", ip, e.getMessage());
+    } finally {
+      hostCache.put(ip, host);
+      lookups.remove(ip);
+    }
+    return host;
+  }
+
+  /**
+   * Gets the client address of the request. It's parsed from the headers once
+   * and kept in the request attributes.
+   *
+   * @param request the request
+   * @return the client address
+   */
+  protected ClientAddress getClientAddress(HttpServletRequest request) {
+    ClientAddress client = (ClientAddress) request.getAttribute(CLIENT_ADDRESS_ATTRIBUTE);
+    if (client == null) {
+      client = parseClientAddress(request);
+      request.setAttribute(CLIENT_ADDRESS_ATTRIBUTE, client);
+    }
+    return client;
+  }
+
+  /**
+   * Parses the client address of the request. Forwarding headers are used
+   * only if the request comes from a trusted proxy.
+   *
+   * @param request the request
+   * @return the client address
+   */
+  protected ClientAddress parseClientAddress(HttpServletRequest request) {
+    String remoteAddr = request.getRemoteAddr();
+    if (isTrustedProxy(remoteAddr)) {
+      String host = request.getHeader(FORWARDED_HOST);
+      String ip = getForwardedFor(request.getHeader(FORWARDED_FOR));
+      for (int i = 0; ip == null && i < FORWARDED_IP_HEADERS.length; i++) {
+        String header = request.getHeader(FORWARDED_IP_HEADERS[i]);
+        if (isValidHost(header)) {
+          ip = header.trim();
+        }
+      }
+      if (ip != null) {
+        return new ClientAddress(ip, isValidHost(host) ? host.trim() : null, true);
+      }
+      return new ClientAddress(isValidHost(remoteAddr) ? remoteAddr : null, isValidHost(host) ? host.trim() : null, false);
+    }
+    return new ClientAddress(isValidHost(remoteAddr) ? remoteAddr : null, null, false);
+  }
+
+  /**
+   * Gets the client IP from X-Forwarded-For header: <code>client, proxy1,
+   * proxy2</code>. When the trusted proxies are configured, the right-most
+   * address not of a trusted proxy is the client, otherwise the first one.
+   *
+   * @param forwardedFor the X-Forwarded-For header
+   * @return the client IP or <code>null</code> if not found
+   */
+  protected String getForwardedFor(String forwardedFor) {
+    if (!isValidHost(forwardedFor)) {
+      return null;
+    }
+    String[] addrs = forwardedFor.split(",");
+    if (trustedProxies != null) {
+      for (int i = addrs.length - 1; i > 0; i--) {
+        String addr = addrs[i].trim();
+        if (isValidHost(addr) && !trustedProxies.contains(addr)) {
+          return addr;
+        }
+      }
+    }
+    String addr = addrs.length > 0 ? addrs[0].trim() : null;
+    return isValidHost(addr) ? addr : null;
+  }
+
+  /**
+   * Checks if the address is of a trusted proxy.
+   *
+   * @param addr the address
+   * @return true, if is trusted proxy
+   */
+  protected boolean isTrustedProxy(String addr) {
+    return trustedProxies == null || (addr != null && trustedProxies.contains(addr));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void start() {
+    if (trustedProxies == null) {
+      LOG.info("Forwarding headers of any client are trusted");
+    } else {
+      LOG.info("Forwarding headers are trusted from {}", Arrays.toString(trustedProxies.toArray()));
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void stop() {
+    dnsExecutor.shutdownNow();
+  }
+
+  /**
+   * Gets the long property.
+   *
+   * @param param the param
+   * @param name the name
+   * @param defaultValue the default value
+   * @return the long property
+   */
+  protected long getLongProperty(PropertiesParam param, String name, long defaultValue) {
+    String value = param != null ? param.getProperty(name) : null;
+    if (value != null && !value.trim().isEmpty()) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        LOG.warn("Wrong {} value: {}, using {}", name, value, defaultValue);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Not empty.
+   *
+   * @param str the str
+   * @return true, if successful
+   */
+  protected boolean notEmpty(String str) {
+    return str != null && str.length() > 0;
+  }
+
+  /**
+   * Checks if is valid host. It's a trivial check for <code>null</code>, non
+   * empty string and not "unknown" text.
+   *
+   * @param host the host name or IP address
+   * @return true, if is valid host
+   */
+  protected boolean isValidHost(String host) {
+    return notEmpty(host) && !"unknown".equalsIgnoreCase(host);
+  }
+
+  /**
+   * Client address parsed from a request.
+   */
+  protected static class ClientAddress {
+
+    /** The IP address. */
+    private final String  ip;
+
+    /** The forwarded host. */
+    private final String  forwardedHost;
+
+    /** The IP address is taken from forwarding headers. */
+    private final boolean forwarded;
+
+    /**
+     * Instantiates a new client address.
+     *
+     * @param ip the ip
+     * @param forwardedHost the forwarded host
+     * @param forwarded the IP address is taken from forwarding headers
+     */
+    protected ClientAddress(String ip, String forwardedHost, boolean forwarded) {
+      this.ip = ip;
+      this.forwardedHost = forwardedHost;
+      this.forwarded = forwarded;
+    }
+
+    /**
+     * Gets the IP address.
+     *
+     * @return the ip
+     */
+    protected String getIp() {
+      return ip;
+    }
+
+    /**
+     * Gets the X-Forwarded-Host.
+     *
+     * @return the forwarded host
+     */
+    protected String getForwardedHost() {
+      return forwardedHost;
+    }
+
+    /**
+     * Checks if the IP address is taken from forwarding headers.
+     *
+     * @return true, if forwarded
+     */
+    protected boolean isForwarded() {
+      return forwarded;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent hash ring of cluster members. Each member has a number
+ * of virtual nodes on the ring, a key belongs to the first member found
+ * clockwise from the key hash. When a member joins or leaves, only the keys of
+ * its ring segments change the owner.
+ */
+public class ConsistentHash {
+
+  /** The Constant VIRTUAL_NODES. */
+  protected static final int             VIRTUAL_NODES = 64;
+
+  /** The ring. */
+  private final TreeMap<Integer, String> ring          = new TreeMap<>();
+
+  /** The members. */
+  private final List<String>             members;
+
+  /**
+   * Instantiates a new consistent hash.
+   *
+   * @param members the members, not empty
+   */
+  public ConsistentHash(Collection<String> members) {
+    List<String> sorted = new ArrayList<>(members);
+    Collections.sort(sorted);
+    this.members = Collections.unmodifiableList(sorted);
+    for (String member : sorted) {
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        ring.put(hash(member + "#" + i), member);
+      }
+    }
+  }
+
+  /**
+   * Gets the owner of the key.
+   *
+   * @param key the key
+   * @return the owner member
+   */
+  public String getOwner(String key) {
+    Map.Entry<Integer, String> entry = ring.ceilingEntry(hash(key));
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * Gets the members.
+   *
+   * @return the sorted members
+   */
+  public List<String> getMembers() {
+    return members;
+  }
+
+  /**
+   * Hashes the string, the string hash code is mixed to spread similar
+   * strings over the ring.
+   *
+   * @param value the value
+   * @return the hash
+   */
+  protected static int hash(String value) {
+    int h = value.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
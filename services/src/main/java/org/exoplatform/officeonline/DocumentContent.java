@@ -36,6 +36,12 @@ public abstract class DocumentContent {
    */
   public abstract String getType();
 
+  /**
+   * Document content size in bytes.
+   *
+   * @return the size, or <code>-1</code> if it cannot be determined
+   */
+  public abstract long getSize();
 
   /**
    * Gets the version.
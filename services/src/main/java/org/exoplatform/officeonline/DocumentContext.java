@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.exoplatform.ecm.webui.utils.PermissionUtil;
+import org.exoplatform.ecm.webui.utils.Utils;
+import org.exoplatform.officeonline.exception.FileExtensionNotFoundException;
+import org.exoplatform.services.jcr.access.PermissionType;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Document resolved for a WOPI request. The node is fetched once, its title,
+ * mime type, extension and the permission checks are read lazily and kept for
+ * the rest of the request, thus the call chain doesn't look for the same JCR
+ * items again. It's not thread safe and shouldn't outlive the request.
+ */
+public class DocumentContext {
+
+  /** The Constant LOG. */
+  protected static final Log  LOG = ExoLogger.getLogger(DocumentContext.class);
+
+  /** The WOPI service. */
+  protected final WOPIService service;
+
+  /** The node. */
+  protected final Node        node;
+
+  /** The file id. */
+  private String              fileId;
+
+  /** The workspace. */
+  private String              workspace;
+
+  /** The path. */
+  private String              path;
+
+  /** The symlink of the shared document. */
+  private Node                symlink;
+
+  /** The symlink user. */
+  private String              symlinkUser;
+
+  /** The title. */
+  private String              title;
+
+  /** The mime type. */
+  private String              mimeType;
+
+  /** The extension, empty if not found. */
+  private String              extension;
+
+  /** The file type. */
+  private Boolean             file;
+
+  /** The supported flag. */
+  private Boolean             supported;
+
+  /** The can edit flag. */
+  private Boolean             canEdit;
+
+  /** The can view flag. */
+  private Boolean             canView;
+
+  /** The can update flag. */
+  private Boolean             canUpdate;
+
+  /**
+   * Instantiates a new document context.
+   *
+   * @param service the service
+   * @param node the node
+   */
+  protected DocumentContext(WOPIService service, Node node) {
+    this.service = service;
+    this.node = node;
+  }
+
+  /**
+   * Gets the node.
+   *
+   * @return the node
+   */
+  public Node getNode() {
+    return node;
+  }
+
+  /**
+   * Gets the file id.
+   *
+   * @return the file id
+   * @throws RepositoryException the repository exception
+   */
+  public String getFileId() throws RepositoryException {
+    if (fileId == null) {
+      fileId = node.getUUID();
+    }
+    return fileId;
+  }
+
+  /**
+   * Gets the workspace name.
+   *
+   * @return the workspace
+   * @throws RepositoryException the repository exception
+   */
+  public String getWorkspace() throws RepositoryException {
+    if (workspace == null) {
+      workspace = node.getSession().getWorkspace().getName();
+    }
+    return workspace;
+  }
+
+  /**
+   * Gets the node path.
+   *
+   * @return the path
+   * @throws RepositoryException the repository exception
+   */
+  public String getPath() throws RepositoryException {
+    if (path == null) {
+      path = node.getPath();
+    }
+    return path;
+  }
+
+  /**
+   * Gets the symlink of the document shared to the user.
+   *
+   * @param userId the user id
+   * @return the symlink or <code>null</code> if the document isn't shared
+   *         from other user's drive
+   * @throws RepositoryException the repository exception
+   */
+  public Node getSymlink(String userId) throws RepositoryException {
+    if (!userId.equals(symlinkUser)) {
+      String nodePath = getPath();
+      if (nodePath.startsWith(service.usersPath) && !userId.equals(service.getUserId(nodePath))) {
+        symlink = service.getSymlink(node, userId);
+      } else {
+        symlink = null;
+      }
+      symlinkUser = userId;
+    }
+    return symlink;
+  }
+
+  /**
+   * Gets the exo:title as is.
+   *
+   * @return the title
+   * @throws RepositoryException the repository exception
+   */
+  public String getTitle() throws RepositoryException {
+    if (title == null) {
+      title = node.getProperty(Utils.EXO_TITLE).getString();
+    }
+    return title;
+  }
+
+  /**
+   * Checks if the node is nt:file.
+   *
+   * @return true, if is file
+   * @throws RepositoryException the repository exception
+   */
+  public boolean isFile() throws RepositoryException {
+    if (file == null) {
+      file = node.isNodeType(Utils.NT_FILE);
+    }
+    return file;
+  }
+
+  /**
+   * Gets the mime type: of the file content or by the node name.
+   *
+   * @return the mime type
+   * @throws RepositoryException the repository exception
+   */
+  public String getMimeType() throws RepositoryException {
+    if (mimeType == null) {
+      if (isFile()) {
+        mimeType = node.getNode(Utils.JCR_CONTENT).getProperty(Utils.JCR_MIMETYPE).getString();
+      } else {
+        mimeType = service.documentTypePlugin.resolveMimeType(node.getName());
+      }
+    }
+    return mimeType;
+  }
+
+  /**
+   * Gets the file extension: from the title or by the mime type.
+   *
+   * @return the extension
+   * @throws RepositoryException the repository exception
+   * @throws FileExtensionNotFoundException if the extension cannot be found
+   */
+  public String getExtension() throws RepositoryException, FileExtensionNotFoundException {
+    if (extension == null) {
+      String name = getTitle();
+      if (name.contains(".")) {
+        extension = name.substring(name.lastIndexOf(".") + 1);
+      } else {
+        String mimeExtension = service.documentTypePlugin.getFileExtension(getMimeType());
+        extension = mimeExtension != null ? mimeExtension : "";
+      }
+    }
+    if (extension.isEmpty()) {
+      throw new FileExtensionNotFoundException("Cannot get file extension. FileId: " + getFileId() + ". Title: " + getTitle());
+    }
+    return extension;
+  }
+
+  /**
+   * Checks if the document type is supported.
+   *
+   * @return true, if is supported
+   * @throws RepositoryException the repository exception
+   */
+  public boolean isSupported() throws RepositoryException {
+    if (supported == null) {
+      String name = node.getName();
+      supported = name.endsWith(WOPIService.WOPITEST) || name.endsWith(WOPIService.WOPITESTX)
+          || service.documentTypePlugin.isSupported(getMimeType());
+    }
+    return supported;
+  }
+
+  /**
+   * Checks if the user can edit the document in the editor.
+   *
+   * @return true, if successful
+   */
+  public boolean canEdit() {
+    if (canEdit == null) {
+      try {
+        canEdit = isFile() && isSupported() && PermissionUtil.canSetProperty(node) && hasAction(WOPIAction.EDIT);
+      } catch (RepositoryException e) {
+        LOG.error("Cannot check file edit permissions", e);
+        canEdit = false;
+      }
+    }
+    return canEdit;
+  }
+
+  /**
+   * Checks if the user can view the document in the editor.
+   *
+   * @return true, if successful
+   */
+  public boolean canView() {
+    if (canView == null) {
+      try {
+        canView = isFile() && isSupported() && hasAction(WOPIAction.VIEW);
+      } catch (RepositoryException e) {
+        LOG.error("Cannot check file view permissions", e);
+        canView = false;
+      }
+    }
+    return canView;
+  }
+
+  /**
+   * Checks if the user can update the parent node (rename, put relative).
+   *
+   * @return true if user can update
+   * @throws RepositoryException the repository exception
+   */
+  public boolean canUpdate() throws RepositoryException {
+    if (canUpdate == null) {
+      NodeImpl parent;
+      try {
+        parent = (NodeImpl) node.getParent();
+        canUpdate = parent.hasPermission(PermissionType.READ) && parent.hasPermission(PermissionType.ADD_NODE)
+            && parent.hasPermission(PermissionType.SET_PROPERTY);
+      } catch (AccessDeniedException e) {
+        LOG.warn("Cannot get access to the parent node {}", e.getMessage());
+        canUpdate = false;
+      }
+    }
+    return canUpdate;
+  }
+
+  /**
+   * Checks if WOPI has the action for the file extension.
+   *
+   * @param action the action
+   * @return true, if successful
+   * @throws RepositoryException the repository exception
+   */
+  protected boolean hasAction(WOPIAction action) throws RepositoryException {
+    try {
+      return service.discoveryPlugin.getActionUrl(getExtension(), action) != null;
+    } catch (FileExtensionNotFoundException e) {
+      LOG.error("Cannot get file extension from node: " + getFileId());
+      return false;
+    }
+  }
+}
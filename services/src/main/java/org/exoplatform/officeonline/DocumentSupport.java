@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+/**
+ * Editor support of a document evaluated for the current user: whether the
+ * document type is supported, the user can edit or view it in the editor and
+ * the editor link. A missing document is not supported.
+ */
+public class DocumentSupport {
+
+  /** The file id. */
+  protected final String  fileId;
+
+  /** The workspace. */
+  protected final String  workspace;
+
+  /** The document id, differs from the file id for symlinks. */
+  protected final String  documentId;
+
+  /** The supported flag. */
+  protected final boolean supported;
+
+  /** The editable flag. */
+  protected final boolean editable;
+
+  /** The viewable flag. */
+  protected final boolean viewable;
+
+  /** The editor link. */
+  protected final String  link;
+
+  /**
+   * Instantiates a new document support.
+   *
+   * @param fileId the file id
+   * @param workspace the workspace
+   * @param documentId the document id
+   * @param supported the supported flag
+   * @param editable the editable flag
+   * @param viewable the viewable flag
+   * @param link the editor link, can be <code>null</code>
+   */
+  public DocumentSupport(String fileId,
+                         String workspace,
+                         String documentId,
+                         boolean supported,
+                         boolean editable,
+                         boolean viewable,
+                         String link) {
+    this.fileId = fileId;
+    this.workspace = workspace;
+    this.documentId = documentId;
+    this.supported = supported;
+    this.editable = editable;
+    this.viewable = viewable;
+    this.link = link;
+  }
+
+  /**
+   * Instantiates a new document support of not supported document.
+   *
+   * @param fileId the file id
+   * @param workspace the workspace
+   */
+  public DocumentSupport(String fileId, String workspace) {
+    this(fileId, workspace, fileId, false, false, false, null);
+  }
+
+  /**
+   * Gets the file id.
+   *
+   * @return the file id
+   */
+  public String getFileId() {
+    return fileId;
+  }
+
+  /**
+   * Gets the workspace.
+   *
+   * @return the workspace
+   */
+  public String getWorkspace() {
+    return workspace;
+  }
+
+  /**
+   * Gets the id of the document node: the symlink target or the file itself.
+   *
+   * @return the document id
+   */
+  public String getDocumentId() {
+    return documentId;
+  }
+
+  /**
+   * Checks if the document type is supported.
+   *
+   * @return true, if is supported
+   */
+  public boolean isSupported() {
+    return supported;
+  }
+
+  /**
+   * Checks if the user can edit the document.
+   *
+   * @return true, if is editable
+   */
+  public boolean isEditable() {
+    return editable;
+  }
+
+  /**
+   * Checks if the user can view the document.
+   *
+   * @return true, if is viewable
+   */
+  public boolean isViewable() {
+    return viewable;
+  }
+
+  /**
+   * Gets the editor link: to edit if the user can edit, to view otherwise.
+   *
+   * @return the link or <code>null</code> if the document cannot be opened in
+   *         the editor
+   */
+  public String getLink() {
+    return link;
+  }
+}
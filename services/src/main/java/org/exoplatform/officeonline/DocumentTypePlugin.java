@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.exoplatform.commons.utils.MimeTypeResolver;
 import org.exoplatform.container.component.BaseComponentPlugin;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.container.xml.ObjectParameter;
@@ -29,7 +30,10 @@ import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
 /**
- * The DocumentTypePlugin.
+ * The DocumentTypePlugin. The configured mime types and extensions are indexed
+ * once in both directions, the maps are immutable and can be read
+ * concurrently. Mime types of file names are resolved by a shared
+ * {@link MimeTypeResolver}.
  */
 public class DocumentTypePlugin extends BaseComponentPlugin {
 
@@ -39,9 +43,12 @@ public class DocumentTypePlugin extends BaseComponentPlugin {
   /** The DOCUMENT_TYPES_CONFIGURATION param *. */
   private static final String   DOCUMENT_TYPES_CONFIGURATION = "document-types-configuration";
 
-  /** The file extensions. */
+  /** The file extensions by mime type. */
   protected Map<String, String> fileExtensions               = Collections.emptyMap();
 
+  /** The mime types by file extension. */
+  protected Map<String, String> mimeTypes                    = Collections.emptyMap();
+
   /**
    * Initializes a DocumentTypePlugin.
    *
@@ -52,9 +59,22 @@ public class DocumentTypePlugin extends BaseComponentPlugin {
     if (typesParam != null) {
       Object obj = typesParam.getObject();
       if (obj != null && WOPIService.DocumentTypesConfig.class.isAssignableFrom(obj.getClass())) {
-        this.fileExtensions = WOPIService.DocumentTypesConfig.class.cast(obj).getFileExtensions();
+        Map<String, String> configured = WOPIService.DocumentTypesConfig.class.cast(obj).getFileExtensions();
+        if (configured != null) {
+          Map<String, String> extensions = new HashMap<>();
+          Map<String, String> types = new HashMap<>();
+          for (Map.Entry<String, String> entry : configured.entrySet()) {
+            String mimeType = entry.getKey();
+            String extension = entry.getValue();
+            extensions.put(mimeType, extension);
+            // several mime types can have the same extension, first one wins in the map order
+            // (the configuration uses a LinkedHashMap to keep the declared order)
+            types.putIfAbsent(extension, mimeType);
+          }
+          this.fileExtensions = Collections.unmodifiableMap(extensions);
+          this.mimeTypes = Collections.unmodifiableMap(types);
+        }
       } else {
-        this.fileExtensions = new HashMap<>();
         LOG.error("The file extensions are not set");
       }
     }
@@ -63,10 +83,61 @@ public class DocumentTypePlugin extends BaseComponentPlugin {
   /**
    * Gets the file extensions.
    *
-   * @return the file extensions
+   * @return the file extensions by mime type, unmodifiable
    */
   public Map<String, String> getFileExtensions() {
     return fileExtensions;
   }
 
+  /**
+   * Gets the file extension of the mime type.
+   *
+   * @param mimeType the mime type
+   * @return the file extension or <code>null</code> if the type isn't supported
+   */
+  public String getFileExtension(String mimeType) {
+    return mimeType != null ? fileExtensions.get(mimeType) : null;
+  }
+
+  /**
+   * Gets the mime type of the file extension.
+   *
+   * @param extension the extension
+   * @return the mime type or <code>null</code> if the extension isn't
+   *         supported
+   */
+  public String getMimeType(String extension) {
+    return extension != null ? mimeTypes.get(extension) : null;
+  }
+
+  /**
+   * Checks if the mime type is supported.
+   *
+   * @param mimeType the mime type
+   * @return true, if is supported
+   */
+  public boolean isSupported(String mimeType) {
+    return mimeType != null && fileExtensions.containsKey(mimeType);
+  }
+
+  /**
+   * Resolves the mime type of the file name.
+   *
+   * @param fileName the file name
+   * @return the mime type
+   */
+  public String resolveMimeType(String fileName) {
+    return ResolverHolder.RESOLVER.getMimeType(fileName);
+  }
+
+  /**
+   * Holder of the shared mime type resolver, it loads the mime types table on
+   * first use.
+   */
+  private static class ResolverHolder {
+
+    /** The resolver. */
+    static final MimeTypeResolver RESOLVER = new MimeTypeResolver();
+  }
+
 }
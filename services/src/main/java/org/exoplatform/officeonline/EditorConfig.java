@@ -47,7 +47,7 @@ public class EditorConfig {
     this.fileId = fileId;
     this.workspace = workspace;
     this.baseUrl = baseUrl;
-    this.permissions = permissions != null ? permissions : Collections.emptyList();
+    this.permissions = permissions != null ? Collections.unmodifiableList(permissions) : Collections.emptyList();
     this.accessToken = accessToken;
   }
 
@@ -1,30 +1,46 @@
 package org.exoplatform.officeonline;
 
+import java.io.Serializable;
+
 /**
- * The Class FileLock.
+ * The Class FileLock. It's immutable, a refresh creates a new instance that
+ * replaces the current one atomically in the lock table.
  */
-public class FileLock {
+public class FileLock implements Serializable {
+
+  /** The Constant serialVersionUID. */
+  private static final long serialVersionUID = 6398226591526094383L;
 
   /** The external lock id that used by WOPI clients */
-  private final String lockId;
+  private final String      lockId;
 
   /** The JCR lock token. */
-  private final String lockToken;
+  private final String      lockToken;
+
+  /** The workspace of the locked node. */
+  private final String      workspace;
 
   /** The expires. */
-  private long         expires;
+  private final long        expires;
+
+  /** The cluster member keeping the lock expiration. */
+  private final String      owner;
 
   /**
    * Instantiates a new file lock.
    *
    * @param lockId the lock id
    * @param lockToken the lock token
+   * @param workspace the workspace
    * @param expires the expires
+   * @param owner the owner member
    */
-  protected FileLock(String lockId, String lockToken, long expires) {
+  protected FileLock(String lockId, String lockToken, String workspace, long expires, String owner) {
     this.lockId = lockId;
     this.lockToken = lockToken;
+    this.workspace = workspace;
     this.expires = expires;
+    this.owner = owner;
   }
 
   /**
@@ -37,12 +53,46 @@ public class FileLock {
   }
 
   /**
-   * Sets the expires.
+   * Creates a copy of the lock with new expires.
    *
    * @param expires the new expires
+   * @return the refreshed file lock
    */
-  protected void setExpires(long expires) {
-    this.expires = expires;
+  protected FileLock withExpires(long expires) {
+    return new FileLock(lockId, lockToken, workspace, expires, owner);
+  }
+
+  /**
+   * Creates a copy of the lock owned by other member.
+   *
+   * @param owner the new owner
+   * @param expires the new expires
+   * @return the file lock
+   */
+  protected FileLock withOwner(String owner, long expires) {
+    return new FileLock(lockId, lockToken, workspace, expires, owner);
+  }
+
+  /**
+   * Creates a copy of the lock with new lock id, the JCR lock stays the same.
+   *
+   * @param lockId the new lock id
+   * @param expires the new expires
+   * @return the relocked file lock
+   */
+  protected FileLock withLockId(String lockId, long expires) {
+    return new FileLock(lockId, lockToken, workspace, expires, owner);
+  }
+
+  /**
+   * Checks if the other lock has the same lock id and JCR lock, the expires
+   * may differ.
+   *
+   * @param other the other lock
+   * @return true, if it's the same lock
+   */
+  protected boolean isSameLock(FileLock other) {
+    return lockId.equals(other.lockId) && lockToken.equals(other.lockToken);
   }
 
   /**
@@ -63,4 +113,23 @@ public class FileLock {
     return lockToken;
   }
 
+  /**
+   * Gets the cluster member keeping the lock expiration.
+   *
+   * @return the owner, can be <code>null</code> for locks of older versions
+   */
+  protected String getOwner() {
+    return owner;
+  }
+
+  /**
+   * Gets the workspace of the locked node.
+   *
+   * @return the workspace, can be <code>null</code> for locks of older
+   *         versions
+   */
+  protected String getWorkspace() {
+    return workspace;
+  }
+
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.io.Serializable;
+
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.rpc.RPCException;
+import org.exoplatform.services.rpc.RPCService;
+import org.exoplatform.services.rpc.RemoteCommand;
+import org.exoplatform.services.security.Identity;
+
+/**
+ * Removes cached user identities on all cluster nodes. The identity cache is
+ * local to each node (identities aren't serializable) while organization
+ * listeners are called only on the node where the change was made, thus the
+ * removal is broadcast over eXo {@link RPCService} when it's available.
+ */
+public class IdentityCacheInvalidator {
+
+  /** The Constant LOG. */
+  protected static final Log                 LOG = ExoLogger.getLogger(IdentityCacheInvalidator.class);
+
+  /** The identity cache. */
+  protected final ExoCache<String, Identity> identityCache;
+
+  /** The RPC service, <code>null</code> if not clustered. */
+  protected final RPCService                 rpcService;
+
+  /** The command removing the identity on other nodes. */
+  protected final RemoteCommand              invalidateCommand;
+
+  /**
+   * Instantiates a new identity cache invalidator. The command is registered
+   * here, the RPC service requires it before its start.
+   *
+   * @param cacheService the cache service
+   */
+  public IdentityCacheInvalidator(CacheService cacheService) {
+    this.identityCache = cacheService.getCacheInstance(AbstractOfficeOnlineService.IDENTITY_CACHE_NAME);
+    this.rpcService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(RPCService.class);
+    if (rpcService != null) {
+      this.invalidateCommand = rpcService.registerCommand(new RemoteCommand() {
+
+        @Override
+        public String getId() {
+          return IdentityCacheInvalidator.class.getName() + "-invalidate";
+        }
+
+        @Override
+        public Serializable execute(Serializable[] args) throws Throwable {
+          identityCache.remove((String) args[0]);
+          return null;
+        }
+      });
+    } else {
+      this.invalidateCommand = null;
+    }
+  }
+
+  /**
+   * Removes the cached identity of the user on this and other cluster nodes.
+   * Other nodes are called asynchronously, a failure is only logged: their
+   * identities expire with the cache TTL.
+   *
+   * @param userId the user id
+   */
+  public void invalidate(String userId) {
+    identityCache.remove(userId);
+    if (invalidateCommand != null) {
+      try {
+        rpcService.executeCommandOnAllNodes(invalidateCommand, false, userId);
+      } catch (RPCException e) {
+        LOG.warn("Cannot remove cached identity of {} on other cluster nodes: {}", userId, e.getMessage());
+      }
+    }
+  }
+}
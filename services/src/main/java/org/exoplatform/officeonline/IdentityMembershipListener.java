@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import org.exoplatform.services.organization.Membership;
+import org.exoplatform.services.organization.MembershipEventListener;
+
+/**
+ * Removes the cached identity of a user when the user memberships change, thus
+ * token authenticated requests see actual permissions of the user.
+ */
+public class IdentityMembershipListener extends MembershipEventListener {
+
+  /** The identity cache invalidator. */
+  protected final IdentityCacheInvalidator invalidator;
+
+  /**
+   * Instantiates a new identity membership listener.
+   *
+   * @param invalidator the identity cache invalidator
+   */
+  public IdentityMembershipListener(IdentityCacheInvalidator invalidator) {
+    this.invalidator = invalidator;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void postSave(Membership m, boolean isNew) throws Exception {
+    invalidator.invalidate(m.getUserName());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void postDelete(Membership m) throws Exception {
+    invalidator.invalidate(m.getUserName());
+  }
+}
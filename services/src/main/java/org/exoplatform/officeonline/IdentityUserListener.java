@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserEventListener;
+
+/**
+ * Removes the cached identity of a user when the user is deleted or disabled.
+ */
+public class IdentityUserListener extends UserEventListener {
+
+  /** The identity cache invalidator. */
+  protected final IdentityCacheInvalidator invalidator;
+
+  /**
+   * Instantiates a new identity user listener.
+   *
+   * @param invalidator the identity cache invalidator
+   */
+  public IdentityUserListener(IdentityCacheInvalidator invalidator) {
+    this.invalidator = invalidator;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void postDelete(User user) throws Exception {
+    invalidator.invalidate(user.getUserName());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void postSetEnabled(User user) throws Exception {
+    invalidator.invalidate(user.getUserName());
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lock cluster of members in the same JVM. By default it's a single member
+ * cluster, several members can share a group to run a cluster in one JVM.
+ */
+public class LocalLockCluster implements LockCluster {
+
+  /** The Constant LOCAL_MEMBER. */
+  protected static final String                           LOCAL_MEMBER = "local";
+
+  /** The group members by name. */
+  protected final ConcurrentMap<String, LocalLockCluster> group;
+
+  /** The member name. */
+  protected final String                                  member;
+
+  /** The handler. */
+  protected volatile Handler                              handler;
+
+  /**
+   * Instantiates a single member cluster.
+   */
+  public LocalLockCluster() {
+    this(new ConcurrentHashMap<>(), LOCAL_MEMBER);
+  }
+
+  /**
+   * Instantiates a member of the group.
+   *
+   * @param group the group shared by the members
+   * @param member the member name
+   */
+  public LocalLockCluster(ConcurrentMap<String, LocalLockCluster> group, String member) {
+    this.group = group;
+    this.member = member;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void start(Handler handler) {
+    this.handler = handler;
+    group.put(member, this);
+    notifyMembers();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void stop() {
+    group.remove(member, this);
+    notifyMembers();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getLocalMember() {
+    return member;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Collection<String> getMembers() {
+    return new ArrayList<>(group.keySet());
+  }
+
+  /**
+   * Notifies the members about the group change.
+   */
+  protected void notifyMembers() {
+    for (LocalLockCluster groupMember : group.values()) {
+      groupMember.handler.onMembersChanged();
+    }
+  }
+}
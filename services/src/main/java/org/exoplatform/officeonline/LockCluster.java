@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.util.Collection;
+
+/**
+ * Membership of the cluster nodes sharing WOPI locks. Each file lock is owned
+ * by one member, the owner is recorded in the lock mirror, thus no lock
+ * operations are sent between members.
+ */
+public interface LockCluster {
+
+  /**
+   * Handler of the membership changes.
+   */
+  interface Handler {
+
+    /**
+     * Called when members joined or left the cluster.
+     */
+    void onMembersChanged();
+  }
+
+  /**
+   * Starts the member with given handler.
+   *
+   * @param handler the handler
+   */
+  void start(Handler handler);
+
+  /**
+   * Stops the member.
+   */
+  void stop();
+
+  /**
+   * Gets the local member name.
+   *
+   * @return the local member
+   */
+  String getLocalMember();
+
+  /**
+   * Gets the current members, it may call the cluster.
+   *
+   * @return the members
+   */
+  Collection<String> getMembers();
+}
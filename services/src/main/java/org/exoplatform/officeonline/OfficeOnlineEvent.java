@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+/**
+ * Event of a document handled by WOPI, delivered to
+ * {@link OfficeOnlineListener} by {@link OfficeOnlineEventBus}.
+ */
+public class OfficeOnlineEvent {
+
+  /**
+   * The event type.
+   */
+  public enum Type {
+
+    /** The content saved. */
+    SAVED,
+
+    /** The file locked. */
+    LOCKED,
+
+    /** The file unlocked. */
+    UNLOCKED,
+
+    /** The file renamed. */
+    RENAMED,
+
+    /** The file deleted. */
+    DELETED,
+
+    /** The file created. */
+    CREATED
+  }
+
+  /** The type. */
+  private final Type         type;
+
+  /** The config. */
+  private final EditorConfig config;
+
+  /** The file id of created file or the new title of renamed one. */
+  private final String       value;
+
+  /**
+   * Instantiates a new office online event.
+   *
+   * @param type the type
+   * @param config the config
+   * @param value the value
+   */
+  protected OfficeOnlineEvent(Type type, EditorConfig config, String value) {
+    this.type = type;
+    this.config = config;
+    this.value = value;
+  }
+
+  /**
+   * Creates the saved event.
+   *
+   * @param config the config
+   * @return the office online event
+   */
+  public static OfficeOnlineEvent saved(EditorConfig config) {
+    return new OfficeOnlineEvent(Type.SAVED, config, null);
+  }
+
+  /**
+   * Creates the locked event.
+   *
+   * @param config the config
+   * @return the office online event
+   */
+  public static OfficeOnlineEvent locked(EditorConfig config) {
+    return new OfficeOnlineEvent(Type.LOCKED, config, null);
+  }
+
+  /**
+   * Creates the unlocked event.
+   *
+   * @param config the config
+   * @return the office online event
+   */
+  public static OfficeOnlineEvent unlocked(EditorConfig config) {
+    return new OfficeOnlineEvent(Type.UNLOCKED, config, null);
+  }
+
+  /**
+   * Creates the renamed event.
+   *
+   * @param config the config
+   * @param title the new title
+   * @return the office online event
+   */
+  public static OfficeOnlineEvent renamed(EditorConfig config, String title) {
+    return new OfficeOnlineEvent(Type.RENAMED, config, title);
+  }
+
+  /**
+   * Creates the deleted event.
+   *
+   * @param config the config
+   * @return the office online event
+   */
+  public static OfficeOnlineEvent deleted(EditorConfig config) {
+    return new OfficeOnlineEvent(Type.DELETED, config, null);
+  }
+
+  /**
+   * Creates the created event.
+   *
+   * @param config the config of the origin file
+   * @param fileId the created file id
+   * @return the office online event
+   */
+  public static OfficeOnlineEvent created(EditorConfig config, String fileId) {
+    return new OfficeOnlineEvent(Type.CREATED, config, fileId);
+  }
+
+  /**
+   * Gets the type.
+   *
+   * @return the type
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Gets the config.
+   *
+   * @return the config
+   */
+  public EditorConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * Calls the listener method of the event type.
+   *
+   * @param listener the listener
+   */
+  public void dispatch(OfficeOnlineListener listener) {
+    switch (type) {
+    case SAVED:
+      listener.onSaved(config);
+      break;
+    case LOCKED:
+      listener.onLocked(config);
+      break;
+    case UNLOCKED:
+      listener.onUnlocked(config);
+      break;
+    case RENAMED:
+      listener.onRenamed(config, value);
+      break;
+    case DELETED:
+      listener.onDeleted(config);
+      break;
+    case CREATED:
+      listener.onCreated(config, value);
+      break;
+    default:
+      break;
+    }
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Delivers {@link OfficeOnlineEvent} to the listeners asynchronously. Each
+ * listener has a bounded queue and a thread, thus a slow listener delays
+ * neither WOPI requests nor other listeners. When the queue is full the event
+ * is dropped or the publisher waits for a free place, by the listener
+ * {@link Policy}.
+ */
+public class OfficeOnlineEventBus {
+
+  /** The Constant LOG. */
+  protected static final Log  LOG          = ExoLogger.getLogger(OfficeOnlineEventBus.class);
+
+  /** The Constant POLL_TIMEOUT. */
+  protected static final long POLL_TIMEOUT = 1000;
+
+  /** The Constant STOP_TIMEOUT. */
+  protected static final long STOP_TIMEOUT = 5000;
+
+  /**
+   * The policy when a subscriber queue is full.
+   */
+  public enum Policy {
+
+    /** Drop the event. */
+    DROP,
+
+    /** Wait for a free place in the queue. */
+    BLOCK;
+
+    /**
+     * Gets the policy by name, case insensitive.
+     *
+     * @param name the name
+     * @param defaultPolicy the default policy
+     * @return the policy
+     */
+    public static Policy fromName(String name, Policy defaultPolicy) {
+      if (name != null) {
+        for (Policy policy : values()) {
+          if (policy.name().equalsIgnoreCase(name.trim())) {
+            return policy;
+          }
+        }
+      }
+      return defaultPolicy;
+    }
+  }
+
+  /** The subscribers. */
+  protected final List<Subscriber> subscribers  = new CopyOnWriteArrayList<>();
+
+  /** The thread number. */
+  protected final AtomicInteger    threadNumber = new AtomicInteger();
+
+  /**
+   * Subscribes the listener.
+   *
+   * @param listener the listener
+   * @param queueSize the queue size
+   * @param policy the policy when the queue is full
+   */
+  public void subscribe(OfficeOnlineListener listener, int queueSize, Policy policy) {
+    Subscriber subscriber = new Subscriber(listener, queueSize, policy);
+    subscribers.add(subscriber);
+    subscriber.start("officeonline-events-" + threadNumber.incrementAndGet());
+  }
+
+  /**
+   * Unsubscribes the listener. Events already queued are delivered.
+   *
+   * @param listener the listener
+   */
+  public void unsubscribe(OfficeOnlineListener listener) {
+    for (Subscriber subscriber : subscribers) {
+      if (subscriber.listener == listener) {
+        subscribers.remove(subscriber);
+        subscriber.stop(STOP_TIMEOUT);
+      }
+    }
+  }
+
+  /**
+   * Publishes the event to all subscribers.
+   *
+   * @param event the event
+   */
+  public void publish(OfficeOnlineEvent event) {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.offer(event);
+    }
+  }
+
+  /**
+   * Gets the subscribers, their metrics in particular.
+   *
+   * @return the subscribers
+   */
+  public List<Subscriber> getSubscribers() {
+    return Collections.unmodifiableList(new ArrayList<>(subscribers));
+  }
+
+  /**
+   * Stops all subscribers. Events already queued are delivered within a
+   * timeout.
+   */
+  public void stop() {
+    List<Subscriber> stopped = new ArrayList<>(subscribers);
+    subscribers.clear();
+    for (Subscriber subscriber : stopped) {
+      subscriber.stop(STOP_TIMEOUT);
+    }
+  }
+
+  /**
+   * Listener with its queue, thread and delivery metrics.
+   */
+  public static class Subscriber implements Runnable {
+
+    /** The listener. */
+    protected final OfficeOnlineListener             listener;
+
+    /** The queue. */
+    protected final BlockingQueue<OfficeOnlineEvent> queue;
+
+    /** The policy. */
+    protected final Policy                           policy;
+
+    /** The published events. */
+    protected final AtomicLong                       published = new AtomicLong();
+
+    /** The delivered events. */
+    protected final AtomicLong                       delivered = new AtomicLong();
+
+    /** The dropped events. */
+    protected final AtomicLong                       dropped   = new AtomicLong();
+
+    /** The events failed in the listener. */
+    protected final AtomicLong                       failed    = new AtomicLong();
+
+    /** The running flag. */
+    protected volatile boolean                       running;
+
+    /** The thread. */
+    protected Thread                                 thread;
+
+    /**
+     * Instantiates a new subscriber.
+     *
+     * @param listener the listener
+     * @param queueSize the queue size
+     * @param policy the policy
+     */
+    protected Subscriber(OfficeOnlineListener listener, int queueSize, Policy policy) {
+      this.listener = listener;
+      this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+      this.policy = policy;
+    }
+
+    /**
+     * Offers the event to the queue, by the policy.
+     *
+     * @param event the event
+     */
+    protected void offer(OfficeOnlineEvent event) {
+      published.incrementAndGet();
+      if (!queue.offer(event)) {
+        if (policy == Policy.BLOCK) {
+          try {
+            // don't wait for a stopped subscriber
+            while (running) {
+              if (queue.offer(event, POLL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return;
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (dropped.incrementAndGet() % 1000 == 1) {
+          LOG.warn("Events dropped for listener {}, queue is full: {} dropped", getName(), dropped.get());
+        }
+      }
+    }
+
+    /**
+     * Delivers the queued events until stopped, then the rest of the queue.
+     */
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          OfficeOnlineEvent event = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+          if (event != null) {
+            deliver(event);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (OfficeOnlineEvent event = queue.poll(); event != null; event = queue.poll()) {
+        deliver(event);
+      }
+    }
+
+    /**
+     * Delivers the event to the listener.
+     *
+     * @param event the event
+     */
+    protected void deliver(OfficeOnlineEvent event) {
+      try {
+        event.dispatch(listener);
+        delivered.incrementAndGet();
+      } catch (Throwable t) {
+        failed.incrementAndGet();
+        LOG.warn("Listener {} error on {} event", getName(), event.getType(), t);
+      }
+    }
+
+    /**
+     * Starts the thread.
+     *
+     * @param threadName the thread name
+     */
+    protected void start(String threadName) {
+      running = true;
+      thread = new Thread(this, threadName);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * Stops the thread after the queued events delivered.
+     *
+     * @param timeout the max time to wait for the delivery
+     */
+    protected void stop(long timeout) {
+      running = false;
+      try {
+        thread.join(timeout);
+        if (thread.isAlive()) {
+          LOG.warn("Listener {} didn't complete {} events in time", getName(), queue.size());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Gets the listener name.
+     *
+     * @return the name
+     */
+    public String getName() {
+      return listener.getClass().getName();
+    }
+
+    /**
+     * Gets the policy.
+     *
+     * @return the policy
+     */
+    public Policy getPolicy() {
+      return policy;
+    }
+
+    /**
+     * Gets the number of queued events.
+     *
+     * @return the queued events
+     */
+    public int getQueued() {
+      return queue.size();
+    }
+
+    /**
+     * Gets the number of published events.
+     *
+     * @return the published events
+     */
+    public long getPublished() {
+      return published.get();
+    }
+
+    /**
+     * Gets the number of delivered events.
+     *
+     * @return the delivered events
+     */
+    public long getDelivered() {
+      return delivered.get();
+    }
+
+    /**
+     * Gets the number of dropped events.
+     *
+     * @return the dropped events
+     */
+    public long getDropped() {
+      return dropped.get();
+    }
+
+    /**
+     * Gets the number of events failed in the listener.
+     *
+     * @return the failed events
+     */
+    public long getFailed() {
+      return failed.get();
+    }
+  }
+}
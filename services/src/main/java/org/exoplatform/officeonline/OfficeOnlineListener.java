@@ -7,15 +7,65 @@ package org.exoplatform.officeonline;
  * with that class is registered with a component using the
  * component's addListener method. When
  * the officeOnline event occurs, that object's appropriate
- * method is invoked.
+ * method is invoked. Events are delivered asynchronously,
+ * by a thread of the listener, see {@link OfficeOnlineEventBus}.
  *
  */
 public interface OfficeOnlineListener {
-  
+
   /**
    * On saved.
    *
    * @param config the config
    */
-  void onSaved(EditorConfig config);
+  default void onSaved(EditorConfig config) {
+    // Nothing
+  }
+
+  /**
+   * On locked.
+   *
+   * @param config the config
+   */
+  default void onLocked(EditorConfig config) {
+    // Nothing
+  }
+
+  /**
+   * On unlocked.
+   *
+   * @param config the config
+   */
+  default void onUnlocked(EditorConfig config) {
+    // Nothing
+  }
+
+  /**
+   * On renamed.
+   *
+   * @param config the config
+   * @param title the new title
+   */
+  default void onRenamed(EditorConfig config, String title) {
+    // Nothing
+  }
+
+  /**
+   * On deleted.
+   *
+   * @param config the config
+   */
+  default void onDeleted(EditorConfig config) {
+    // Nothing
+  }
+
+  /**
+   * On created, by PutRelativeFile.
+   *
+   * @param config the config of the origin file
+   * @param fileId the created file id
+   */
+  default void onCreated(EditorConfig config, String fileId) {
+    // Nothing
+  }
 }
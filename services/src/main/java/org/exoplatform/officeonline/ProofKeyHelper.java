@@ -6,7 +6,6 @@ import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.PublicKey;
-import java.security.Signature;
 import java.security.spec.KeySpec;
 import java.security.spec.RSAPublicKeySpec;
 import java.time.Duration;
@@ -22,9 +21,6 @@ public class ProofKeyHelper {
   /** The Constant KEY_FACTORY_ALGORITHM. */
   private static final String KEY_FACTORY_ALGORITHM = "RSA";
 
-  /** The Constant SIGNATURE_ALGORITHM. */
-  private static final String SIGNATURE_ALGORITHM   = "SHA256withRSA";
-
   /** The Constant EPOCH_IN_TICKS. */
   private static final long   EPOCH_IN_TICKS        = 621355968000000000L; // January 1, 1970 (start of Unix epoch) in "ticks"
 
@@ -76,26 +72,6 @@ public class ProofKeyHelper {
     return byteBuffer.array();
   }
 
-  /**
-   * Verify proof key.
-   *
-   * @param key the key
-   * @param proofKeyHeader the proof key header
-   * @param expectedProofBytes the expected proof bytes
-   * @return true, if successful
-   */
-  public static boolean verifyProofKey(PublicKey key, String proofKeyHeader, byte[] expectedProofBytes) {
-    try {
-      Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
-      verifier.initVerify(key);
-      verifier.update(expectedProofBytes);
-      byte[] signedProof = DatatypeConverter.parseBase64Binary(proofKeyHeader);
-      return verifier.verify(signedProof);
-    } catch (GeneralSecurityException e) {
-      return false;
-    }
-  }
-
   /**
    * Checks that the given {@code timestamp} is no more than 20 minutes old.
    *
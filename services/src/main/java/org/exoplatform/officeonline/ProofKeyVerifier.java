@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Verifies WOPI proof keys with the current and old keys of the discovery.
+ * Each thread keeps its signatures initialized for the keys, they are
+ * re-initialized only when the discovery provides other keys.
+ */
+public class ProofKeyVerifier {
+
+  /**
+   * The verification result.
+   */
+  public enum Result {
+
+    /** Verified with the current key. */
+    CURRENT_KEY,
+
+    /** Verified with the old key. */
+    OLD_KEY,
+
+    /** Not verified. */
+    FAILED
+  }
+
+  /**
+   * Signature initialized for a key.
+   */
+  protected static class KeySignature {
+
+    /** The key. */
+    PublicKey key;
+
+    /** The signature. */
+    Signature signature;
+  }
+
+  /**
+   * Signatures of a thread.
+   */
+  protected static class Signatures {
+
+    /** The current key signature. */
+    final KeySignature current = new KeySignature();
+
+    /** The old key signature. */
+    final KeySignature old     = new KeySignature();
+  }
+
+  /** The Constant LOG. */
+  protected static final Log              LOG                     = ExoLogger.getLogger(ProofKeyVerifier.class);
+
+  /** The Constant SIGNATURE_ALGORITHM. */
+  protected static final String           SIGNATURE_ALGORITHM     = "SHA256withRSA";
+
+  /** The discovery plugin. */
+  protected final WOPIDiscoveryPlugin     discoveryPlugin;
+
+  /** The signatures of current thread. */
+  protected final ThreadLocal<Signatures> signatures              = ThreadLocal.withInitial(Signatures::new);
+
+  /** The current key verifications. */
+  protected final AtomicLong              currentKeyVerifications = new AtomicLong();
+
+  /** The old key verifications. */
+  protected final AtomicLong              oldKeyVerifications     = new AtomicLong();
+
+  /** The failed verifications. */
+  protected final AtomicLong              failedVerifications     = new AtomicLong();
+
+  /**
+   * Instantiates a new proof key verifier.
+   *
+   * @param discoveryPlugin the discovery plugin
+   */
+  public ProofKeyVerifier(WOPIDiscoveryPlugin discoveryPlugin) {
+    this.discoveryPlugin = discoveryPlugin;
+  }
+
+  /**
+   * Verifies the proof following the flow from
+   * https://wopi.readthedocs.io/en/latest/scenarios/proofkeys.html#verifying-the-proof-keys
+   *
+   * @param expectedProofBytes the expected proof bytes
+   * @param proofHeader the X-WOPI-Proof header
+   * @param oldProofHeader the X-WOPI-ProofOld header, can be blank
+   * @return the result
+   */
+  public Result verify(byte[] expectedProofBytes, String proofHeader, String oldProofHeader) {
+    Signatures threadSignatures = signatures.get();
+    byte[] proof = DatatypeConverter.parseBase64Binary(proofHeader);
+    PublicKey currentKey = discoveryPlugin.getProofKey();
+    if (verify(threadSignatures.current, currentKey, proof, expectedProofBytes)) {
+      currentKeyVerifications.incrementAndGet();
+      return Result.CURRENT_KEY;
+    }
+    if (oldProofHeader != null && !oldProofHeader.trim().isEmpty()) {
+      byte[] oldProof = DatatypeConverter.parseBase64Binary(oldProofHeader);
+      if (verify(threadSignatures.current, currentKey, oldProof, expectedProofBytes)) {
+        currentKeyVerifications.incrementAndGet();
+        return Result.CURRENT_KEY;
+      }
+      if (verify(threadSignatures.old, discoveryPlugin.getOldProofKey(), proof, expectedProofBytes)) {
+        oldKeyVerifications.incrementAndGet();
+        return Result.OLD_KEY;
+      }
+    }
+    failedVerifications.incrementAndGet();
+    return Result.FAILED;
+  }
+
+  /**
+   * Gets the number of proofs verified with the current key.
+   *
+   * @return the current key verifications
+   */
+  public long getCurrentKeyVerifications() {
+    return currentKeyVerifications.get();
+  }
+
+  /**
+   * Gets the number of proofs verified with the old key.
+   *
+   * @return the old key verifications
+   */
+  public long getOldKeyVerifications() {
+    return oldKeyVerifications.get();
+  }
+
+  /**
+   * Gets the number of failed verifications.
+   *
+   * @return the failed verifications
+   */
+  public long getFailedVerifications() {
+    return failedVerifications.get();
+  }
+
+  /**
+   * Verifies the proof with given key.
+   *
+   * @param keySignature the signature of current thread for the key
+   * @param key the key
+   * @param proof the proof
+   * @param expectedProofBytes the expected proof bytes
+   * @return true, if verified
+   */
+  protected boolean verify(KeySignature keySignature, PublicKey key, byte[] proof, byte[] expectedProofBytes) {
+    if (key == null) {
+      return false;
+    }
+    try {
+      if (keySignature.signature == null) {
+        keySignature.signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+      }
+      if (keySignature.key != key) {
+        keySignature.signature.initVerify(key);
+        keySignature.key = key;
+      }
+      keySignature.signature.update(expectedProofBytes);
+      // verify() resets the signature to its initialized state
+      return keySignature.signature.verify(proof);
+    } catch (GeneralSecurityException e) {
+      // the signature state is unknown after an error: initialize it again
+      keySignature.key = null;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Cannot verify proof key: {}", e.getMessage());
+      }
+      return false;
+    }
+  }
+}
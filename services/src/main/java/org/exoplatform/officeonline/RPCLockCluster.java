@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.rpc.RPCException;
+import org.exoplatform.services.rpc.RPCService;
+import org.exoplatform.services.rpc.RemoteCommand;
+import org.exoplatform.services.rpc.TopologyChangeEvent;
+import org.exoplatform.services.rpc.TopologyChangeListener;
+
+/**
+ * Lock cluster over eXo {@link RPCService}. The RPC service is used only when
+ * the cluster topology changes: to learn the names of the members running the
+ * lock manager. Lock operations never call other nodes.
+ */
+public class RPCLockCluster implements LockCluster, TopologyChangeListener {
+
+  /** The Constant LOG. */
+  protected static final Log    LOG         = ExoLogger.getLogger(RPCLockCluster.class);
+
+  /** The Constant RPC_TIMEOUT. */
+  protected static final long   RPC_TIMEOUT = 10000;
+
+  /** The RPC service. */
+  protected final RPCService    rpcService;
+
+  /** The local member name, unique per node start. */
+  protected final String        localMember = UUID.randomUUID().toString();
+
+  /** The command returning the member name. */
+  protected final RemoteCommand memberCommand;
+
+  /** The handler. */
+  protected volatile Handler    handler;
+
+  /**
+   * Instantiates a new RPC lock cluster. The command is registered here, the
+   * RPC service requires it before its start.
+   *
+   * @param rpcService the RPC service
+   */
+  public RPCLockCluster(RPCService rpcService) {
+    this.rpcService = rpcService;
+    this.memberCommand = rpcService.registerCommand(new RemoteCommand() {
+
+      @Override
+      public String getId() {
+        return RPCLockCluster.class.getName() + "-member";
+      }
+
+      @Override
+      public Serializable execute(Serializable[] args) throws Throwable {
+        return handler != null ? localMember : null;
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void start(Handler handler) {
+    this.handler = handler;
+    rpcService.registerTopologyChangeListener(this);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void stop() {
+    rpcService.unregisterTopologyChangeListener(this);
+    handler = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getLocalMember() {
+    return localMember;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Collection<String> getMembers() {
+    try {
+      List<String> members = new ArrayList<>();
+      for (Object result : rpcService.executeCommandOnAllNodes(memberCommand, RPC_TIMEOUT)) {
+        if (result instanceof String) {
+          members.add((String) result);
+        }
+      }
+      if (!members.contains(localMember)) {
+        members.add(localMember);
+      }
+      return members;
+    } catch (RPCException e) {
+      LOG.warn("Cannot get cluster members, considering the local member only: {}", e.getMessage());
+      return Collections.singletonList(localMember);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void onChange(TopologyChangeEvent event) {
+    Handler current = handler;
+    if (current != null) {
+      current.onMembersChanged();
+    }
+  }
+}
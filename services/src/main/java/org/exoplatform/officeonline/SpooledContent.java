@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.exoplatform.officeonline.exception.FileTooLargeException;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Document content spooled to a local temporary file. The file is deleted on
+ * {@link #close()}. The content hash is computed while spooling.
+ */
+public class SpooledContent implements Closeable {
+
+  /** The Constant LOG. */
+  protected static final Log    LOG            = ExoLogger.getLogger(SpooledContent.class);
+
+  /** The Constant CHUNK_SIZE. */
+  protected static final long   CHUNK_SIZE     = 1024 * 1024;
+
+  /** The Constant TEMP_PREFIX. */
+  protected static final String TEMP_PREFIX    = "officeonline-";
+
+  /** The Constant TEMP_SUFFIX. */
+  protected static final String TEMP_SUFFIX    = ".spool";
+
+  /** The Constant HASH_ALGORITHM. */
+  protected static final String HASH_ALGORITHM = "SHA-256";
+
+  /** The Constant HEX_DIGITS. */
+  private static final char[]   HEX_DIGITS     = "0123456789abcdef".toCharArray();
+
+  /** The file. */
+  private final Path            file;
+
+  /** The size. */
+  private final long            size;
+
+  /** The hash. */
+  private final String          hash;
+
+  /**
+   * Instantiates a new spooled content.
+   *
+   * @param file the file
+   * @param size the size
+   * @param hash the hash
+   */
+  protected SpooledContent(Path file, long size, String hash) {
+    this.file = file;
+    this.size = size;
+    this.hash = hash;
+  }
+
+  /**
+   * Spools the data to a temporary file in chunks, the data is digested on the
+   * way.
+   *
+   * @param data the data, it will be closed
+   * @param maxSize the max allowed size, or <code>-1</code> if not limited
+   * @return the spooled content
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @throws FileTooLargeException if the data is larger than the max size
+   */
+  public static SpooledContent spool(InputStream data, long maxSize) throws IOException, FileTooLargeException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(HASH_ALGORITHM + " not supported", e);
+    }
+    Path file = Files.createTempFile(TEMP_PREFIX, TEMP_SUFFIX);
+    boolean spooled = false;
+    try (ReadableByteChannel source = Channels.newChannel(new DigestInputStream(data, digest));
+        FileChannel target = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      long size = 0;
+      long transferred;
+      do {
+        // read one byte over the max size to know that it's exceeded
+        long count = maxSize >= 0 ? Math.min(CHUNK_SIZE, maxSize - size + 1) : CHUNK_SIZE;
+        transferred = target.transferFrom(source, size, count);
+        size += transferred;
+        if (maxSize >= 0 && size > maxSize) {
+          throw new FileTooLargeException("File size exceeds " + maxSize + " bytes");
+        }
+      } while (transferred > 0);
+      spooled = true;
+      return new SpooledContent(file, size, toHex(digest.digest()));
+    } finally {
+      if (!spooled) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  /**
+   * Opens a new stream to read the content.
+   *
+   * @return the input stream
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public InputStream openStream() throws IOException {
+    return Files.newInputStream(file);
+  }
+
+  /**
+   * Gets the size.
+   *
+   * @return the size
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the hex encoded SHA-256 hash of the content.
+   *
+   * @return the hash
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * Gets the file.
+   *
+   * @return the file
+   */
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Deletes the temporary file.
+   */
+  @Override
+  public void close() {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOG.warn("Cannot delete spooled content {}: {}", file, e.getMessage());
+    }
+  }
+
+  /**
+   * Encodes the bytes to hex string.
+   *
+   * @param bytes the bytes
+   * @return the hex string
+   */
+  private static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+      hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+    }
+    return new String(hex);
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Executes tasks on a fixed set of single thread workers. Tasks with the same
+ * key always run on the same worker, in submission order. Each worker has a
+ * bounded queue, when it's full the submitting thread waits for a free place,
+ * thus the order is kept under load too.
+ */
+public class StripedExecutor {
+
+  /** The Constant LOG. */
+  protected static final Log           LOG = ExoLogger.getLogger(StripedExecutor.class);
+
+  /** The workers. */
+  protected final ThreadPoolExecutor[] workers;
+
+  /**
+   * Instantiates a new striped executor.
+   *
+   * @param name the threads name prefix
+   * @param workers the number of workers
+   * @param queueSize the queue size of each worker
+   */
+  public StripedExecutor(String name, int workers, int queueSize) {
+    this.workers = new ThreadPoolExecutor[Math.max(1, workers)];
+    for (int i = 0; i < this.workers.length; i++) {
+      String threadName = name + "-" + i;
+      AtomicInteger threadNumber = new AtomicInteger();
+      this.workers[i] = new ThreadPoolExecutor(1,
+                                               1,
+                                               0L,
+                                               TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                                               r -> {
+                                                 Thread thread = new Thread(r, threadName + "-" + threadNumber.incrementAndGet());
+                                                 thread.setDaemon(true);
+                                                 return thread;
+                                               },
+                                               (r, executor) -> {
+                                                 if (executor.isShutdown()) {
+                                                   throw new RejectedExecutionException(threadName + " is shut down");
+                                                 }
+                                                 try {
+                                                   executor.getQueue().put(r);
+                                                 } catch (InterruptedException e) {
+                                                   Thread.currentThread().interrupt();
+                                                   throw new RejectedExecutionException("Interrupted while waiting for "
+                                                       + threadName, e);
+                                                 }
+                                               });
+    }
+  }
+
+  /**
+   * Executes the task on the worker of given key.
+   *
+   * @param key the key
+   * @param task the task
+   * @throws RejectedExecutionException if the executor is shut down
+   */
+  public void execute(String key, Runnable task) {
+    workers[(key.hashCode() & Integer.MAX_VALUE) % workers.length].execute(task);
+  }
+
+  /**
+   * Gets the number of tasks waiting in queues.
+   *
+   * @return the queued tasks
+   */
+  public int getQueuedTasks() {
+    int queued = 0;
+    for (ThreadPoolExecutor worker : workers) {
+      queued += worker.getQueue().size();
+    }
+    return queued;
+  }
+
+  /**
+   * Shuts down the workers letting them complete already submitted tasks.
+   *
+   * @param timeout the max time to wait for the tasks
+   * @param unit the time unit
+   */
+  public void shutdown(long timeout, TimeUnit unit) {
+    for (ThreadPoolExecutor worker : workers) {
+      worker.shutdown();
+    }
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    try {
+      for (ThreadPoolExecutor worker : workers) {
+        if (!worker.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+          LOG.warn("Worker didn't complete {} tasks in time", worker.getQueue().size() + worker.getActiveCount());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hashed timing wheel of keys by their expiration time. The wheel has a slot
+ * per tick, a key is placed in the slot of its expiration tick, thus schedule,
+ * move and cancel cost constant time and {@link #advance(long)} visits only
+ * the slots of elapsed ticks. Keys expiring later than one wheel revolution
+ * are returned on earlier revolutions too, the caller should check their
+ * actual expiration.
+ */
+public class TimingWheel {
+
+  /** The tick duration in milliseconds. */
+  protected final long          tick;
+
+  /** The slots. */
+  protected final Set<String>[] slots;
+
+  /** The last advanced tick. */
+  protected long                lastTick;
+
+  /**
+   * Instantiates a new timing wheel.
+   *
+   * @param tick the tick duration in milliseconds
+   * @param size the number of slots
+   * @param now the current time
+   */
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long tick, int size, long now) {
+    this.tick = tick;
+    this.slots = new Set[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = ConcurrentHashMap.newKeySet();
+    }
+    this.lastTick = now / tick;
+  }
+
+  /**
+   * Schedules the key at the expiration time.
+   *
+   * @param key the key
+   * @param expires the expires
+   */
+  public void schedule(String key, long expires) {
+    slot(expires).add(key);
+  }
+
+  /**
+   * Moves the key to new expiration time.
+   *
+   * @param key the key
+   * @param oldExpires the old expires
+   * @param expires the new expires
+   */
+  public void move(String key, long oldExpires, long expires) {
+    Set<String> oldSlot = slot(oldExpires);
+    Set<String> newSlot = slot(expires);
+    if (oldSlot != newSlot) {
+      newSlot.add(key);
+      oldSlot.remove(key);
+    }
+  }
+
+  /**
+   * Cancels the key.
+   *
+   * @param key the key
+   * @param expires the expires the key was scheduled at
+   */
+  public void cancel(String key, long expires) {
+    slot(expires).remove(key);
+  }
+
+  /**
+   * Advances the wheel to the current time and removes the keys of elapsed
+   * ticks. It should be called from a single thread.
+   *
+   * @param now the current time
+   * @return the keys that may expire
+   */
+  public List<String> advance(long now) {
+    List<String> expired = new ArrayList<>();
+    long currentTick = now / tick;
+    // a full revolution at most, the slots repeat then
+    long fromTick = Math.max(lastTick + 1, currentTick - slots.length + 1);
+    for (long t = fromTick; t <= currentTick; t++) {
+      Set<String> slot = slots[(int) (t % slots.length)];
+      for (String key : slot) {
+        slot.remove(key);
+        expired.add(key);
+      }
+    }
+    lastTick = currentTick;
+    return expired;
+  }
+
+  /**
+   * Gets the slot of the expiration time.
+   *
+   * @param expires the expires
+   * @return the slot
+   */
+  protected Set<String> slot(long expires) {
+    return slots[(int) ((expires / tick) % slots.length)];
+  }
+}
@@ -3,7 +3,6 @@ package org.exoplatform.officeonline;
 import java.io.IOException;
 
 import javax.servlet.FilterChain;
-import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -18,10 +17,8 @@ import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
-import org.exoplatform.services.security.Authenticator;
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.Identity;
-import org.exoplatform.services.security.IdentityRegistry;
 import org.exoplatform.web.filter.Filter;
 
 /**
@@ -43,7 +40,6 @@ public class TokenAuthenticationFilter extends AbstractFilter implements Filter
    */
   @Override
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
-    ServletContext context = request.getServletContext();
     HttpServletRequest httpRequest = (HttpServletRequest) request;
     ExoContainer container = getContainer();
     SessionProviderService sessionProviders =
@@ -56,14 +52,14 @@ public class TokenAuthenticationFilter extends AbstractFilter implements Filter
         ConversationState.setCurrent(state);
         SessionProvider userProvider = new SessionProvider(state);
         sessionProviders.setSessionProvider(null, userProvider);
-        context.setAttribute(WOPIResource.EDITOR_CONFIG_ATTRIBUTE, config);
+        httpRequest.setAttribute(WOPIResource.EDITOR_CONFIG_ATTRIBUTE, config);
       } else {
-        context.setAttribute(WOPIResource.WRONG_TOKEN_ATTRIBUTE, true);
+        httpRequest.setAttribute(WOPIResource.WRONG_TOKEN_ATTRIBUTE, true);
       }
       chain.doFilter(request, response);
     } finally {
-      context.removeAttribute(WOPIResource.EDITOR_CONFIG_ATTRIBUTE);
-      context.removeAttribute(WOPIResource.WRONG_TOKEN_ATTRIBUTE);
+      httpRequest.removeAttribute(WOPIResource.EDITOR_CONFIG_ATTRIBUTE);
+      httpRequest.removeAttribute(WOPIResource.WRONG_TOKEN_ATTRIBUTE);
       try {
         ConversationState.setCurrent(null);
       } catch (Exception e) {
@@ -117,29 +113,16 @@ public class TokenAuthenticationFilter extends AbstractFilter implements Filter
   }
 
   /**
-   * Find or create user identity.
+   * Find or create user identity. It's shared with the editor service and its
+   * identity cache.
    *
    * @param userId the user id
    * @return the identity can be null if not found and cannot be created via
    *         current authenticator
    */
   protected Identity userIdentity(String userId) {
-    IdentityRegistry identityRegistry = (IdentityRegistry) getContainer().getComponentInstanceOfType(IdentityRegistry.class);
-    Authenticator authenticator = (Authenticator) getContainer().getComponentInstanceOfType(Authenticator.class);
-    Identity userIdentity = identityRegistry.getIdentity(userId);
-    if (userIdentity == null) {
-      // We create user identity by authenticator, but not register it in the
-      // registry
-      try {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("User identity not registered, trying to create it for: " + userId);
-        }
-        userIdentity = authenticator.createIdentity(userId);
-      } catch (Exception e) {
-        LOG.warn("Failed to create user identity: " + userId, e);
-      }
-    }
-    return userIdentity;
+    EditorService editorService = (EditorService) getContainer().getComponentInstanceOfType(EditorService.class);
+    return editorService.userIdentity(userId);
   }
 
   /**
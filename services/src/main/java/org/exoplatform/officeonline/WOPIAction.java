@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * WOPI actions published by the discovery.
+ */
+public enum WOPIAction {
+
+  /** The view. */
+  VIEW("view"),
+
+  /** The edit. */
+  EDIT("edit"),
+
+  /** The edit new. */
+  EDITNEW("editnew"),
+
+  /** The embed view. */
+  EMBEDVIEW("embedview"),
+
+  /** The embed edit. */
+  EMBEDEDIT("embededit"),
+
+  /** The mobile view. */
+  MOBILEVIEW("mobileView"),
+
+  /** The mobile edit. */
+  MOBILEEDIT("mobileEdit"),
+
+  /** The interactive preview. */
+  INTERACTIVEPREVIEW("interactivepreview"),
+
+  /** The image preview. */
+  IMAGEPREVIEW("imagepreview"),
+
+  /** The present. */
+  PRESENT("present"),
+
+  /** The present service. */
+  PRESENTSERVICE("presentservice"),
+
+  /** The attend. */
+  ATTEND("attend"),
+
+  /** The attend service. */
+  ATTENDSERVICE("attendservice"),
+
+  /** The form submit. */
+  FORMSUBMIT("formsubmit"),
+
+  /** The form edit. */
+  FORMEDIT("formedit"),
+
+  /** The convert. */
+  CONVERT("convert"),
+
+  /** The get info. */
+  GETINFO("getinfo"),
+
+  /** The preload view. */
+  PRELOADVIEW("preloadview"),
+
+  /** The preload edit. */
+  PRELOADEDIT("preloadedit"),
+
+  /** The rest. */
+  REST("rest"),
+
+  /** The syndicate. */
+  SYNDICATE("syndicate"),
+
+  /** The legacy web service. */
+  LEGACYWEBSERVICE("legacywebservice");
+
+  /** The actions by lower case name. */
+  private static final Map<String, WOPIAction> BY_NAME = new HashMap<>();
+
+  static {
+    for (WOPIAction action : values()) {
+      BY_NAME.put(action.name.toLowerCase(Locale.ROOT), action);
+    }
+  }
+
+  /** The name. */
+  private final String name;
+
+  /**
+   * Instantiates a new WOPI action.
+   *
+   * @param name the name
+   */
+  private WOPIAction(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the action name as in the discovery.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Finds the action by its name, ignoring the case.
+   *
+   * @param name the name
+   * @return the action or <code>null</code> if the action is unknown
+   */
+  public static WOPIAction fromName(String name) {
+    return name != null ? BY_NAME.get(name.toLowerCase(Locale.ROOT)) : null;
+  }
+}
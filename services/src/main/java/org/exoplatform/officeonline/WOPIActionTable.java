@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable table of WOPI action URLs by file extension and action. It's
+ * built once per discovery load and then only read.
+ */
+public final class WOPIActionTable {
+
+  /** The empty table. */
+  public static final WOPIActionTable EMPTY   = new WOPIActionTable(Collections.emptyMap());
+
+  /** The Constant ACTIONS. */
+  private static final int            ACTIONS = WOPIAction.values().length;
+
+  /** The action URLs by extension, indexed by action ordinal. */
+  private final Map<String, String[]> urls;
+
+  /**
+   * Instantiates a new WOPI action table.
+   *
+   * @param urls the urls
+   */
+  private WOPIActionTable(Map<String, String[]> urls) {
+    this.urls = urls;
+  }
+
+  /**
+   * Gets the action URL.
+   *
+   * @param extension the file extension
+   * @param action the action
+   * @return the action URL or <code>null</code> if there is no such action for
+   *         the extension
+   */
+  public String getActionUrl(String extension, WOPIAction action) {
+    if (extension == null || action == null) {
+      return null;
+    }
+    String[] actions = urls.get(extension);
+    return actions != null ? actions[action.ordinal()] : null;
+  }
+
+  /**
+   * Checks if the table is empty.
+   *
+   * @return true, if is empty
+   */
+  public boolean isEmpty() {
+    return urls.isEmpty();
+  }
+
+  /**
+   * Gets the number of extensions in the table.
+   *
+   * @return the size
+   */
+  public int size() {
+    return urls.size();
+  }
+
+  /**
+   * The table builder.
+   */
+  public static class Builder {
+
+    /** The urls. */
+    private final Map<String, String[]> urls = new HashMap<>();
+
+    /**
+     * Adds the action URL. Actions unknown by {@link WOPIAction} are ignored.
+     *
+     * @param extension the extension
+     * @param actionName the action name
+     * @param url the url
+     * @return the builder
+     */
+    public Builder add(String extension, String actionName, String url) {
+      WOPIAction action = WOPIAction.fromName(actionName);
+      if (extension != null && action != null) {
+        urls.computeIfAbsent(extension.intern(), ext -> new String[ACTIONS])[action.ordinal()] = url;
+      }
+      return this;
+    }
+
+    /**
+     * Builds the table.
+     *
+     * @return the WOPI action table
+     */
+    public WOPIActionTable build() {
+      return urls.isEmpty() ? EMPTY : new WOPIActionTable(new HashMap<>(urls));
+    }
+  }
+}
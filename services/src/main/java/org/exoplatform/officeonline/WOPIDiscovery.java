@@ -1,21 +1,20 @@
 package org.exoplatform.officeonline;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
-import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-@JsonIgnoreProperties(ignoreUnknown = true)
 public class WOPIDiscovery {
 
-  @JacksonXmlProperty(localName = "net-zone")
   private NetZone  netZone;
 
-  @JacksonXmlProperty(localName = "proof-key")
   private ProofKey proofKey;
 
   public NetZone getNetZone() {
@@ -34,17 +33,95 @@ public class WOPIDiscovery {
     this.proofKey = proofKey;
   }
 
-  protected static final XmlMapper XML_MAPPER = new XmlMapper();
+  protected static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+  /**
+   * Reads the discovery in a single streaming pass. If there are several
+   * net-zones, the last one is kept as the previous XML mapping did. Only apps
+   * with given names are kept, other elements are skipped.
+   *
+   * @param input the discovery XML
+   * @param appNames the names of apps to keep, <code>null</code> to keep all
+   * @return the WOPI discovery
+   * @throws IOException if the XML cannot be read or parsed
+   */
+  public static WOPIDiscovery read(InputStream input, Collection<String> appNames) throws IOException {
+    WOPIDiscovery discovery = new WOPIDiscovery();
+    XMLStreamReader reader;
+    try {
+      reader = XML_INPUT_FACTORY.createXMLStreamReader(input);
+    } catch (XMLStreamException e) {
+      throw new IOException("Cannot read WOPI discovery: " + e.getMessage(), e);
+    }
+    try {
+      boolean inNetZone = false;
+      App app = null;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String element = reader.getLocalName();
+          if ("net-zone".equals(element)) {
+            // a next net-zone replaces the previous one
+            discovery.netZone = new NetZone();
+            discovery.netZone.apps = new ArrayList<>();
+            inNetZone = true;
+          } else if (inNetZone && "app".equals(element)) {
+            String name = reader.getAttributeValue(null, "name");
+            if (appNames == null || appNames.contains(name)) {
+              app = new App();
+              app.name = name;
+              app.actions = new ArrayList<>();
+              discovery.netZone.apps.add(app);
+            }
+          } else if (app != null && "action".equals(element)) {
+            Action action = new Action();
+            action.name = reader.getAttributeValue(null, "name");
+            action.ext = reader.getAttributeValue(null, "ext");
+            action.url = reader.getAttributeValue(null, "urlsrc");
+            app.actions.add(action);
+          } else if ("proof-key".equals(element)) {
+            ProofKey proofKey = new ProofKey();
+            proofKey.exponent = reader.getAttributeValue(null, "exponent");
+            proofKey.modulus = reader.getAttributeValue(null, "modulus");
+            proofKey.oldExponent = reader.getAttributeValue(null, "oldexponent");
+            proofKey.oldModulus = reader.getAttributeValue(null, "oldmodulus");
+            discovery.proofKey = proofKey;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          String element = reader.getLocalName();
+          if ("app".equals(element)) {
+            app = null;
+          } else if ("net-zone".equals(element)) {
+            inNetZone = false;
+          }
+        }
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("Cannot parse WOPI discovery: " + e.getMessage(), e);
+    } finally {
+      try {
+        reader.close();
+      } catch (XMLStreamException e) {
+        // nothing to do, the input is closed by the caller
+      }
+    }
+    return discovery;
+  }
 
-  public static WOPIDiscovery read(byte[] discoveryBytes) throws IOException {
-    return XML_MAPPER.readValue(new ByteArrayInputStream(discoveryBytes), WOPIDiscovery.class);
+  /**
+   * Creates the XML input factory not resolving DTDs and external entities.
+   *
+   * @return the XML input factory
+   */
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
   }
 
-  @JsonIgnoreProperties(ignoreUnknown = true)
   public static class NetZone {
 
-    @JacksonXmlProperty(localName = "app")
-    @JacksonXmlElementWrapper(useWrapping = false)
     private List<App> apps;
 
     public List<App> getApps() {
@@ -56,17 +133,14 @@ public class WOPIDiscovery {
     }
   }
 
-  @JsonIgnoreProperties(ignoreUnknown = true)
   public static class ProofKey {
 
     private String exponent;
 
     private String modulus;
 
-    @JacksonXmlProperty(localName = "oldexponent")
     private String oldExponent;
 
-    @JacksonXmlProperty(localName = "oldmodulus")
     private String oldModulus;
 
     public String getExponent() {
@@ -102,13 +176,10 @@ public class WOPIDiscovery {
     }
   }
 
-  @JsonIgnoreProperties(ignoreUnknown = true)
   public static class App {
 
     private String       name;
 
-    @JacksonXmlProperty(localName = "action")
-    @JacksonXmlElementWrapper(useWrapping = false)
     private List<Action> actions;
 
     public String getName() {
@@ -128,13 +199,11 @@ public class WOPIDiscovery {
     }
   }
 
-  @JsonIgnoreProperties(ignoreUnknown = true)
   public static class Action {
     private String name;
 
     private String ext;
 
-    @JacksonXmlProperty(localName = "urlsrc")
     private String url;
 
     public String getName() {
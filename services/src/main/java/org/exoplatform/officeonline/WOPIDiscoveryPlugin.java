@@ -2,30 +2,42 @@ package org.exoplatform.officeonline;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.PublicKey;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 
 import com.sun.star.uno.RuntimeException;
 
+import org.exoplatform.commons.utils.PropertyManager;
 import org.exoplatform.container.component.BaseComponentPlugin;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.container.xml.ValueParam;
 import org.exoplatform.officeonline.WOPIDiscovery.NetZone;
-import org.exoplatform.services.cache.CacheService;
-import org.exoplatform.services.cache.ExoCache;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
@@ -41,42 +53,94 @@ public class WOPIDiscoveryPlugin extends BaseComponentPlugin {
   /** The Constant DISCOVERY_URL. */
   protected static final String                   DISCOVERY_URL                      = "discovery-url";
 
+  /** The Constant DISCOVERY_SNAPSHOT. */
+  protected static final String                   DISCOVERY_SNAPSHOT                 = "discovery-snapshot";
+
+  /** The Constant DATA_DIR_PROPERTY. */
+  protected static final String                   DATA_DIR_PROPERTY                  = "exo.data.dir";
+
+  /** The Constant SNAPSHOT_FILE_NAME. */
+  protected static final String                   SNAPSHOT_FILE_NAME                 = "officeonline/wopi-discovery.xml";
+
+  /** The Constant SNAPSHOT_INFO_SUFFIX. */
+  protected static final String                   SNAPSHOT_INFO_SUFFIX               = ".properties";
+
+  /** The Constant SNAPSHOT_URL. */
+  protected static final String                   SNAPSHOT_URL                       = "url";
+
+  /** The Constant SNAPSHOT_FETCH_TIME. */
+  protected static final String                   SNAPSHOT_FETCH_TIME                = "fetchTime";
+
+  /** The Constant SNAPSHOT_ETAG. */
+  protected static final String                   SNAPSHOT_ETAG                      = "etag";
+
+  /** The Constant SNAPSHOT_LAST_MODIFIED. */
+  protected static final String                   SNAPSHOT_LAST_MODIFIED             = "lastModified";
+
+  /** The Constant HTTP_TIMEOUT. */
+  protected static final int                      HTTP_TIMEOUT                       = 30000;
+
   /** The Constant PLACEHOLDER_IS_LICENSED_USER. */
   protected static final String                   PLACEHOLDER_IS_LICENSED_USER       = "IsLicensedUser";
 
   /** The Constant PLACEHOLDER_IS_LICENSED_USER_VALUE. */
   protected static final String                   PLACEHOLDER_IS_LICENSED_USER_VALUE = "1";
 
-  /** The Constant CACHE_NAME. */
-  protected static final String                   CACHE_NAME                         = "officeonline.discovery.Cache".intern();
+  /** The Constant MIN_REFRESH_INTERVAL. */
+  protected static final long                     MIN_REFRESH_INTERVAL               = 60000;
+
+  /** The Constant MAX_REFRESH_INTERVAL. */
+  protected static final long                     MAX_REFRESH_INTERVAL               = 30 * 60000;
 
   /** The supported app names. */
   protected final List<String>                    supportedAppNames                  =
                                                                     Arrays.asList("Word", "Excel", "PowerPoint", "WopiTest");
 
   /** The proof key. */
-  protected PublicKey                             proofKey;
+  protected volatile PublicKey                    proofKey;
 
   /** The old proof key. */
-  protected PublicKey                             oldProofKey;
+  protected volatile PublicKey                    oldProofKey;
 
   /** The discovery url. */
   protected String                                discoveryUrl;
 
-  /** The extension action UR ls. */
-  // extension => wopi action => wopi action url
-  protected ExoCache<String, Map<String, String>> extensionActionURLs;
+  /** The discovery snapshot file, <code>null</code> if snapshot disabled. */
+  protected Path                                  snapshotFile;
+
+  /** The ETag of loaded discovery. */
+  protected volatile String                       discoveryETag;
+
+  /** The Last-Modified date of loaded discovery. */
+  protected volatile String                       discoveryLastModified;
+
+  /** The HTTP client, its connections are reused between refreshes. */
+  protected final CloseableHttpClient             httpClient;
+
+  /** The action URLs by extension and action, replaced on each load. */
+  protected volatile WOPIActionTable              actionTable                        = WOPIActionTable.EMPTY;
 
   /** The executor for refreshing. */
   protected ScheduledExecutorService              refreshExecutor                    = Executors.newScheduledThreadPool(1);
 
+  /** The flag of a refresh requested and not yet done. */
+  protected final AtomicBoolean                   refreshRequested                   = new AtomicBoolean();
+
+  /** The time of last requested refresh. */
+  protected volatile long                         lastRefreshTime;
+
+  /** The number of requested refreshes failed in a row. */
+  protected volatile int                          failedRefreshes;
+
+  /** The listeners of discovery reload. */
+  protected final List<Runnable>                  reloadListeners                    = new CopyOnWriteArrayList<>();
+
   /**
    * Instantiates a new WOPI discovery service.
    *
-   * @param cacheService the cache service
    * @param params the params
    */
-  public WOPIDiscoveryPlugin(CacheService cacheService, InitParams params) {
+  public WOPIDiscoveryPlugin(InitParams params) {
     ValueParam discoveryURLParam = params.getValueParam(DISCOVERY_URL);
     String val = discoveryURLParam != null ? discoveryURLParam.getValue() : null;
     if (val == null || (val = val.trim()).isEmpty()) {
@@ -84,7 +148,29 @@ public class WOPIDiscoveryPlugin extends BaseComponentPlugin {
     } else {
       this.discoveryUrl = val;
     }
-    this.extensionActionURLs = cacheService.getCacheInstance(CACHE_NAME);
+    ValueParam snapshotParam = params.getValueParam(DISCOVERY_SNAPSHOT);
+    String snapshot = snapshotParam != null ? snapshotParam.getValue() : null;
+    if (snapshot == null || (snapshot = snapshot.trim()).isEmpty()) {
+      String dataDir = PropertyManager.getProperty(DATA_DIR_PROPERTY);
+      if (dataDir != null && !dataDir.trim().isEmpty()) {
+        this.snapshotFile = Paths.get(dataDir.trim(), SNAPSHOT_FILE_NAME);
+      } else {
+        LOG.warn("WOPI discovery snapshot disabled: neither " + DISCOVERY_SNAPSHOT + " parameter nor " + DATA_DIR_PROPERTY
+            + " property set");
+      }
+    } else {
+      this.snapshotFile = Paths.get(snapshot);
+    }
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(2);
+    connectionManager.setDefaultMaxPerRoute(2);
+    this.httpClient = HttpClients.custom()
+                                 .setConnectionManager(connectionManager)
+                                 .setDefaultRequestConfig(RequestConfig.custom()
+                                                                       .setConnectTimeout(HTTP_TIMEOUT)
+                                                                       .setSocketTimeout(HTTP_TIMEOUT)
+                                                                       .build())
+                                 .build();
   }
 
   /**
@@ -95,16 +181,27 @@ public class WOPIDiscoveryPlugin extends BaseComponentPlugin {
    * @return the action url
    */
   public String getActionUrl(String extension, String action) {
-    if (extensionActionURLs.getCacheSize() == 0) {
-      loadDiscovery();
-    }
+    return getActionUrl(extension, WOPIAction.fromName(action));
+  }
 
-    Map<String, String> map = extensionActionURLs.get(extension);
-    if (map != null && !map.isEmpty()) {
-      return map.get(action);
+  /**
+   * Gets the action url. If discovery isn't loaded yet, an asynchronous
+   * refresh is requested and <code>null</code> returned.
+   *
+   * @param extension the extension
+   * @param action the action
+   * @return the action url
+   */
+  public String getActionUrl(String extension, WOPIAction action) {
+    WOPIActionTable table = actionTable;
+    if (table.isEmpty()) {
+      requestRefresh();
     }
-    LOG.warn("Cannot find action url for {} extension and {} action", extension, action);
-    return null;
+    String url = table.getActionUrl(extension, action);
+    if (url == null) {
+      LOG.warn("Cannot find action url for {} extension and {} action", extension, action);
+    }
+    return url;
   }
 
   /**
@@ -126,38 +223,155 @@ public class WOPIDiscoveryPlugin extends BaseComponentPlugin {
   }
 
   /**
-   * Start.
+   * Start. If there is a snapshot of previously loaded discovery, it's used
+   * and the discovery is refreshed in background. Otherwise it's loaded from
+   * the discovery URL.
    */
   public void start() {
-    loadDiscovery();
+    if (loadSnapshot()) {
+      requestRefresh();
+    } else {
+      loadDiscovery();
+    }
     // Refresh discovery every 12 hours
     refreshExecutor.scheduleAtFixedRate(() -> loadDiscovery(), 12, 12, TimeUnit.HOURS);
   }
 
+  /**
+   * Requests asynchronous discovery refresh. Only one refresh can be requested
+   * at a time, other requests made meanwhile are ignored. The refresh runs not
+   * earlier than {@link #MIN_REFRESH_INTERVAL} after previous one, this
+   * interval doubles after each failed refresh up to
+   * {@link #MAX_REFRESH_INTERVAL}.
+   */
+  public void requestRefresh() {
+    if (refreshRequested.compareAndSet(false, true)) {
+      long interval = Math.min(MIN_REFRESH_INTERVAL << Math.min(failedRefreshes, 16), MAX_REFRESH_INTERVAL);
+      long delay = Math.max(0, lastRefreshTime + interval - System.currentTimeMillis());
+      try {
+        refreshExecutor.schedule(() -> {
+          try {
+            lastRefreshTime = System.currentTimeMillis();
+            if (loadDiscovery()) {
+              failedRefreshes = 0;
+            } else {
+              failedRefreshes++;
+            }
+          } catch (Throwable e) {
+            failedRefreshes++;
+            LOG.error("Error while refreshing WOPI discovery", e);
+          } finally {
+            refreshRequested.set(false);
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("WOPI discovery refresh scheduled in {} ms", delay);
+        }
+      } catch (RejectedExecutionException e) {
+        refreshRequested.set(false);
+        LOG.warn("Cannot schedule WOPI discovery refresh: {}", e.getMessage());
+      }
+    }
+  }
+
   /**
    * Stop.
    */
   public void stop() {
     refreshExecutor.shutdown();
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      LOG.warn("Error closing WOPI discovery HTTP client: {}", e.getMessage());
+    }
   }
 
   /**
-   * Load discovery.
+   * Loads the discovery from the discovery URL. If a discovery already loaded,
+   * the request is conditional and a not modified discovery isn't downloaded
+   * again. A downloaded discovery is streamed to the snapshot temporary file
+   * and parsed from it.
+   *
+   * @return true, if discovery loaded successfully or not modified
    */
-  protected void loadDiscovery() {
-    byte[] discoveryBytes = fetchDiscovery();
-    WOPIDiscovery discovery;
-    try {
-      discovery = WOPIDiscovery.read(discoveryBytes);
+  protected boolean loadDiscovery() {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Fetching WOPI dicovery from discovery URL {}", discoveryUrl);
+    }
+    HttpGet request = new HttpGet(discoveryUrl);
+    boolean conditional = !actionTable.isEmpty();
+    if (conditional) {
+      String etag = discoveryETag;
+      if (etag != null) {
+        request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+      }
+      String lastModified = discoveryLastModified;
+      if (lastModified != null) {
+        request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+      }
+    }
+    Path tmpSnapshot = null;
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int status = response.getStatusLine().getStatusCode();
+      if (conditional && status == HttpStatus.SC_NOT_MODIFIED) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("WOPI discovery not modified");
+        }
+        return true;
+      }
+      HttpEntity entity = response.getEntity();
+      if (status != HttpStatus.SC_OK || entity == null) {
+        LOG.error("Error while fetching WOPI discovery: {}", response.getStatusLine());
+        EntityUtils.consumeQuietly(entity);
+        return false;
+      }
+      WOPIDiscovery discovery;
+      tmpSnapshot = createSnapshotTempFile();
+      if (tmpSnapshot != null) {
+        try (InputStream is = entity.getContent()) {
+          Files.copy(is, tmpSnapshot, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (InputStream is = Files.newInputStream(tmpSnapshot)) {
+          discovery = WOPIDiscovery.read(is, supportedAppNames);
+        }
+      } else {
+        try (InputStream is = entity.getContent()) {
+          discovery = WOPIDiscovery.read(is, supportedAppNames);
+        }
+      }
+      if (!applyDiscovery(discovery)) {
+        return false;
+      }
+      discoveryETag = headerValue(response.getFirstHeader(HttpHeaders.ETAG));
+      discoveryLastModified = headerValue(response.getFirstHeader(HttpHeaders.LAST_MODIFIED));
+      if (tmpSnapshot != null) {
+        saveSnapshot(tmpSnapshot);
+      }
+      return true;
     } catch (IOException e) {
-      LOG.error("Error while reading WOPI discovery {}", e.getMessage());
-      return;
+      LOG.error("Error while fetching WOPI discovery: {}", e.getMessage());
+      return false;
+    } finally {
+      deleteQuietly(tmpSnapshot);
     }
+  }
 
+  /**
+   * Registers the discovery apps and proof keys. Nothing is changed if the
+   * discovery is not valid.
+   *
+   * @param discovery the discovery
+   * @return true, if discovery applied successfully
+   */
+  protected boolean applyDiscovery(WOPIDiscovery discovery) {
     NetZone netZone = discovery.getNetZone();
     if (netZone == null) {
       LOG.error("Invalid WOPI discovery, no net-zone element");
-      return;
+      return false;
+    }
+    if (discovery.getProofKey() == null) {
+      LOG.error("Invalid WOPI discovery, no proof-key element");
+      return false;
     }
 
     registerApps(netZone.getApps());
@@ -171,32 +385,150 @@ public class WOPIDiscoveryPlugin extends BaseComponentPlugin {
       LOG.debug("Registered proof key: {}", proofKey);
       LOG.debug("Registered old proof key: {}", oldProofKey);
     }
+    return true;
   }
 
   /**
-   * Fetch discovery.
+   * Loads the discovery from the snapshot file if it exists and was fetched
+   * from current discovery URL.
    *
-   * @return the byte[]
+   * @return true, if discovery loaded from the snapshot
    */
-  protected byte[] fetchDiscovery() {
-    if (discoveryUrl == null || discoveryUrl.isEmpty()) {
-      throw new RuntimeException("DiscoveryUrl is not specified");
+  protected boolean loadSnapshot() {
+    if (snapshotFile == null || !Files.isRegularFile(snapshotFile)) {
+      return false;
     }
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Fetching WOPI dicovery from discovery URL {}", discoveryUrl);
+    Path infoFile = snapshotInfoFile();
+    Properties info = new Properties();
+    if (Files.isRegularFile(infoFile)) {
+      try (InputStream is = Files.newInputStream(infoFile)) {
+        info.load(is);
+      } catch (IOException e) {
+        LOG.warn("Cannot read WOPI discovery snapshot info {}: {}", infoFile, e.getMessage());
+        return false;
+      }
+    }
+    if (!discoveryUrl.equals(info.getProperty(SNAPSHOT_URL))) {
+      LOG.info("WOPI discovery snapshot {} was fetched from another URL, ignoring it", snapshotFile);
+      return false;
     }
+    try (InputStream is = Files.newInputStream(snapshotFile)) {
+      if (applyDiscovery(WOPIDiscovery.read(is, supportedAppNames))) {
+        discoveryETag = info.getProperty(SNAPSHOT_ETAG);
+        discoveryLastModified = info.getProperty(SNAPSHOT_LAST_MODIFIED);
+        LOG.info("Loaded WOPI discovery snapshot {} fetched at {}", snapshotFile, info.getProperty(SNAPSHOT_FETCH_TIME));
+        return true;
+      }
+    } catch (IOException e) {
+      LOG.warn("Cannot read WOPI discovery snapshot {}: {}", snapshotFile, e.getMessage());
+    }
+    return false;
+  }
 
-    HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
-    HttpGet request = new HttpGet(discoveryUrl);
-    try (CloseableHttpClient httpClient = httpClientBuilder.build();
-        CloseableHttpResponse response = httpClient.execute(request);
-        InputStream is = response.getEntity().getContent()) {
-      return IOUtils.toByteArray(is);
+  /**
+   * Creates a temporary file for the discovery snapshot, in the same directory
+   * as the snapshot.
+   *
+   * @return the path or <code>null</code> if snapshot disabled or the file
+   *         cannot be created
+   */
+  protected Path createSnapshotTempFile() {
+    if (snapshotFile != null) {
+      try {
+        Path dir = snapshotFile.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        return Files.createTempFile(dir, snapshotFile.getFileName().toString(), ".tmp");
+      } catch (IOException e) {
+        LOG.warn("Cannot create WOPI discovery snapshot in {}: {}", snapshotFile, e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Saves the discovery snapshot with its info. The snapshot is already
+   * written to a temporary file, it's moved in place together with the info,
+   * so a partially written snapshot is never read.
+   *
+   * @param tmpSnapshot the temporary file with the discovery
+   */
+  protected void saveSnapshot(Path tmpSnapshot) {
+    Properties info = new Properties();
+    info.setProperty(SNAPSHOT_URL, discoveryUrl);
+    info.setProperty(SNAPSHOT_FETCH_TIME, String.valueOf(System.currentTimeMillis()));
+    String etag = discoveryETag;
+    if (etag != null) {
+      info.setProperty(SNAPSHOT_ETAG, etag);
+    }
+    String lastModified = discoveryLastModified;
+    if (lastModified != null) {
+      info.setProperty(SNAPSHOT_LAST_MODIFIED, lastModified);
+    }
+    Path tmpInfo = null;
+    try {
+      tmpInfo = Files.createTempFile(tmpSnapshot.getParent(), snapshotFile.getFileName().toString(), ".tmp");
+      try (OutputStream os = Files.newOutputStream(tmpInfo)) {
+        info.store(os, "WOPI discovery snapshot");
+      }
+      moveFile(tmpSnapshot, snapshotFile);
+      moveFile(tmpInfo, snapshotInfoFile());
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Saved WOPI discovery snapshot {}", snapshotFile);
+      }
     } catch (IOException e) {
-      LOG.error("Error while fetching WOPI discovery: {}", e.getMessage());
-      return ArrayUtils.EMPTY_BYTE_ARRAY;
+      LOG.warn("Cannot save WOPI discovery snapshot {}: {}", snapshotFile, e.getMessage());
+    } finally {
+      deleteQuietly(tmpInfo);
     }
+  }
+
+  /**
+   * Gets the snapshot info file.
+   *
+   * @return the path
+   */
+  protected Path snapshotInfoFile() {
+    return snapshotFile.resolveSibling(snapshotFile.getFileName() + SNAPSHOT_INFO_SUFFIX);
+  }
+
+  /**
+   * Moves the file replacing the target, atomically if possible.
+   *
+   * @param source the source
+   * @param target the target
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void moveFile(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Deletes the file if it exists, errors are ignored.
+   *
+   * @param file the file, can be <code>null</code>
+   */
+  private static void deleteQuietly(Path file) {
+    if (file != null) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        LOG.warn("Cannot delete temporary file {}: {}", file, e.getMessage());
+      }
+    }
+  }
 
+  /**
+   * Gets the header value.
+   *
+   * @param header the header, can be <code>null</code>
+   * @return the value or <code>null</code>
+   */
+  private static String headerValue(Header header) {
+    return header != null ? header.getValue() : null;
   }
 
   /**
@@ -205,23 +537,34 @@ public class WOPIDiscoveryPlugin extends BaseComponentPlugin {
    * @param apps the apps
    */
   protected void registerApps(List<WOPIDiscovery.App> apps) {
-    Map<String, Map<String, String>> actionURLs = new HashMap<>();
+    WOPIActionTable.Builder table = new WOPIActionTable.Builder();
     apps.stream().filter(app -> supportedAppNames.contains(app.getName())).forEach(app -> {
       app.getActions().forEach(action -> {
-        actionURLs.computeIfAbsent(action.getExt(), k -> new HashMap<>())
-                  .put(action.getName(),
-                       String.format("%s%s=%s",
-                                     action.getUrl().replaceFirst("<.*$", ""),
-                                     PLACEHOLDER_IS_LICENSED_USER,
-                                     PLACEHOLDER_IS_LICENSED_USER_VALUE));
+        table.add(action.getExt(),
+                  action.getName(),
+                  String.format("%s%s=%s",
+                                action.getUrl().replaceFirst("<.*$", ""),
+                                PLACEHOLDER_IS_LICENSED_USER,
+                                PLACEHOLDER_IS_LICENSED_USER_VALUE));
       });
     });
-    extensionActionURLs.clearCache();
-    actionURLs.forEach((key, value) -> {
-      if (key != null) {
-        extensionActionURLs.put(key, value);
+    actionTable = table.build();
+    for (Runnable listener : reloadListeners) {
+      try {
+        listener.run();
+      } catch (Exception e) {
+        LOG.warn("Discovery reload listener error", e);
       }
-    });
+    }
+  }
+
+  /**
+   * Adds the listener called each time the discovery actions are loaded.
+   *
+   * @param listener the listener
+   */
+  public void addReloadListener(Runnable listener) {
+    reloadListeners.add(listener);
   }
 
 }
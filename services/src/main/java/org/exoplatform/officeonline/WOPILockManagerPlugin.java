@@ -1,14 +1,24 @@
 package org.exoplatform.officeonline;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.lock.Lock;
 
+import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.container.component.BaseComponentPlugin;
 import org.exoplatform.ecm.utils.lock.LockUtil;
 import org.exoplatform.officeonline.exception.LockMismatchException;
@@ -22,41 +32,76 @@ import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
+import org.exoplatform.services.rpc.RPCService;
 
 /**
- * The Class WOPILockManagerPlugin is used to manage locks for WOPI.
+ * The Class WOPILockManagerPlugin is used to manage locks for WOPI. The locks
+ * are kept in a lock table by file UUID. Refresh and relock replace the
+ * immutable {@link FileLock} with compare-and-set, the JCR lock is taken only
+ * when a file gets locked and released when it gets unlocked or the lock
+ * expires. Lock acquisition and release are serialized per file with striped
+ * monitors.<br>
+ * In a cluster, each file lock is owned by one node: the node where the lock
+ * was acquired or last refreshed. The owner is recorded in the lock mirror, a
+ * replicated cache where all nodes read the lock id and token. Only the owner
+ * keeps the lock in its table, refreshes it locally and releases it when
+ * expired. A refresh arriving at other node takes the lock over, thus only
+ * acquisition, relock, release and ownership changes are written to the
+ * mirror, no lock operation calls other nodes. A node leaving the cluster
+ * hands its locks over with their expiration, locks of a failed node are
+ * adopted by a member chosen by consistent hashing of the file id.
  */
-public class WOPILockManagerPlugin extends BaseComponentPlugin {
+public class WOPILockManagerPlugin extends BaseComponentPlugin implements LockCluster.Handler {
 
-  /** The locks. */
-  protected ExoCache<String, FileLock> locks;
+  /** The locks by file UUID. */
+  protected final ConcurrentHashMap<String, FileLock> locks              = new ConcurrentHashMap<>();
+
+  /** The locks mirror for other cluster nodes. */
+  protected ExoCache<String, FileLock>                lockCache;
+
+  /** The monitors of lock acquisition and release. */
+  protected final Object[]                            stripes            = new Object[LOCK_STRIPES];
 
   /** The Constant CACHE_NAME. */
-  protected static final String        CACHE_NAME           = "officeonline.locks.Cache".intern();
+  protected static final String                       CACHE_NAME         = "officeonline.locks.Cache".intern();
+
+  /** The Constant LOCK_STRIPES. */
+  protected static final int                          LOCK_STRIPES       = 256;
 
   /** The Constant MIX_LOCKABLE. */
-  protected static final String        MIX_LOCKABLE         = "mix:lockable";
+  protected static final String                       MIX_LOCKABLE       = "mix:lockable";
 
   /** The Constant LOG. */
-  protected static final Log           LOG                  = ExoLogger.getLogger(WOPILockManagerPlugin.class);
+  protected static final Log                          LOG                = ExoLogger.getLogger(WOPILockManagerPlugin.class);
 
   /** The Constant LOCK_EXPIRES. */
-  protected static final long          LOCK_EXPIRES         = 30 * 60000;
+  protected static final long                         LOCK_EXPIRES       = 30 * 60000;
 
-  /** The Constant EXPIRES_DELAY. */
-  protected static final long          EXPIRES_DELAY        = 5 * 60000;
+  /** The Constant EXPIRES_TICK. */
+  protected static final long                         EXPIRES_TICK       = 30000;
+
+  /** The Constant EXPIRES_WHEEL_SIZE, the wheel covers the lock expires. */
+  protected static final int                          EXPIRES_WHEEL_SIZE = (int) (LOCK_EXPIRES / EXPIRES_TICK) + 4;
 
   /** The session providers. */
-  protected SessionProviderService     sessionProviders;
+  protected SessionProviderService                    sessionProviders;
 
   /** The jcr service. */
-  protected RepositoryService          jcrService;
+  protected RepositoryService                         jcrService;
 
   /** The lock service. */
-  protected LockService                lockService;
+  protected LockService                               lockService;
+
+  /** The locks by expiration time. */
+  protected final TimingWheel                         expiresWheel       = new TimingWheel(EXPIRES_TICK,
+                                                                                           EXPIRES_WHEEL_SIZE,
+                                                                                           System.currentTimeMillis());
 
   /** The executor for removing expired locks. */
-  protected ScheduledExecutorService   expiresExecutor      = Executors.newScheduledThreadPool(1);
+  protected ScheduledExecutorService                  expiresExecutor    = Executors.newScheduledThreadPool(1);
+
+  /** The lock cluster. */
+  protected final LockCluster                         cluster;
 
   /**
    * Instantiates a new WOPI lock manager plugin.
@@ -70,65 +115,121 @@ public class WOPILockManagerPlugin extends BaseComponentPlugin {
                                SessionProviderService sessionProviders,
                                RepositoryService jcrService,
                                LockService lockService) {
-    this.locks = cacheService.getCacheInstance(CACHE_NAME);
+    this(cacheService, sessionProviders, jcrService, lockService, createCluster());
+  }
+
+  /**
+   * Instantiates a new WOPI lock manager plugin in the lock cluster. Several
+   * plugins can run in one JVM with {@link LocalLockCluster} of the same group
+   * and a shared lock mirror.
+   *
+   * @param cacheService the cache service
+   * @param sessionProviders the session providers
+   * @param jcrService the jcr service
+   * @param lockService the lock service
+   * @param cluster the lock cluster
+   */
+  protected WOPILockManagerPlugin(CacheService cacheService,
+                                  SessionProviderService sessionProviders,
+                                  RepositoryService jcrService,
+                                  LockService lockService,
+                                  LockCluster cluster) {
+    this.lockCache = cacheService.getCacheInstance(CACHE_NAME);
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Object();
+    }
     this.sessionProviders = sessionProviders;
     this.jcrService = jcrService;
     this.lockService = lockService;
-    expiresExecutor.scheduleAtFixedRate(() -> removeExpired(), EXPIRES_DELAY, EXPIRES_DELAY, TimeUnit.MILLISECONDS);
+    this.cluster = cluster;
+    expiresExecutor.scheduleAtFixedRate(() -> removeExpired(System.currentTimeMillis()),
+                                        EXPIRES_TICK,
+                                        EXPIRES_TICK,
+                                        TimeUnit.MILLISECONDS);
+    cluster.start(this);
+  }
+
+  /**
+   * Creates the lock cluster: over the RPC service if it's available, a single
+   * member cluster otherwise.
+   *
+   * @return the lock cluster
+   */
+  protected static LockCluster createCluster() {
+    RPCService rpcService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(RPCService.class);
+    return rpcService != null ? new RPCLockCluster(rpcService) : new LocalLockCluster();
+  }
+
+  /**
+   * Stops the lock expiration, hands the owned locks over to other members and
+   * leaves the lock cluster.
+   */
+  public void stop() {
+    expiresExecutor.shutdownNow();
+    handOver();
+    cluster.stop();
   }
 
   /**
-   * Locks the node with provided lockId, stores the lock in the cache.
+   * Locks the node with provided lockId, stores the lock in the lock table.
    * Refreshes the lock if the node is locked and lockIds matches.
    *
    * @param node the node
    * @param lockId the lock id
+   * @return true, if the node was locked, false if the lock was refreshed
    * @throws RepositoryException the repository exception
    * @throws LockMismatchException the lock mismatch exception
    */
-  public void lock(Node node, String lockId) throws RepositoryException, LockMismatchException {
-    if (!node.isNodeType(MIX_LOCKABLE)) {
-      node.addMixin(MIX_LOCKABLE);
-      node.save();
+  public boolean lock(Node node, String lockId) throws RepositoryException, LockMismatchException {
+    String fileId = node.getUUID();
+    FileLock fileLock = findLock(fileId);
+    if (fileLock != null && lockId.equals(fileLock.getLockId()) && node.isLocked()) {
+      // already locked with this lockId: nothing to change in JCR
+      replaceLock(fileId, lockId, lockId);
+      return false;
     }
-
-    if (!node.isLocked()) {
-      lockNode(node, lockId);
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("Node successfully locked. UUID: {}, lockId: {}", node.getUUID(), lockId);
-      }
-    } else {
-      FileLock fileLock = locks.get(node.getUUID());
-      // File locked by someone else
-      if (fileLock == null) {
-        String lockToken = "";
-        try {
-          lockToken = lockService.getLockToken(node);
-        } catch (Exception e) {
-          LOG.error("Cannot get lock token from node. UUID: {}. {}", node.getUUID(), e.getMessage());
+    synchronized (stripe(fileId)) {
+      if (!node.isLocked()) {
+        if (fileLock != null) {
+          // the JCR lock was removed by other means
+          removeLock(fileId);
         }
-        throw new LockMismatchException("File locked by other service", lockToken);
-      }
-      if (lockId.equals(fileLock.getLockId())) {
-        fileLock.setExpires(System.currentTimeMillis() + LOCK_EXPIRES);
+        if (!node.isNodeType(MIX_LOCKABLE)) {
+          node.addMixin(MIX_LOCKABLE);
+          node.save();
+        }
+        lockNode(node, lockId);
         if (LOG.isDebugEnabled()) {
-          LOG.debug("Lock refreshed. UUID: {}, lockId: {}", node.getUUID(), lockId);
+          LOG.debug("Node successfully locked. UUID: {}, lockId: {}", fileId, lockId);
         }
+        return true;
       } else {
-        throw new LockMismatchException("Provided lock doesn't match lock on file", fileLock.getLockId());
+        fileLock = findLock(fileId);
+        // File locked by someone else
+        if (fileLock == null) {
+          String lockToken = "";
+          try {
+            lockToken = lockService.getLockToken(node);
+          } catch (Exception e) {
+            LOG.error("Cannot get lock token from node. UUID: {}. {}", fileId, e.getMessage());
+          }
+          throw new LockMismatchException("File locked by other service", lockToken);
+        }
+        replaceLock(fileId, lockId, lockId);
+        return false;
       }
     }
   }
 
   /**
-   * Gets the lock from cache.
+   * Gets the lock from the lock table.
    *
    * @param node the node
    * @return the lock or null, if the node isn't locked
    * @throws RepositoryException the repository exception
    */
   public FileLock getLock(Node node) throws RepositoryException {
-    return node.isLocked() ? locks.get(node.getUUID()) : null;
+    return node.isLocked() ? findLock(node.getUUID()) : null;
   }
 
   /**
@@ -141,22 +242,39 @@ public class WOPILockManagerPlugin extends BaseComponentPlugin {
    * @throws LockMismatchException if the node isn't locked of provided lockId doesn't match the current one
    */
   public void unlock(Node node, String lockId, String workspace) throws RepositoryException, LockMismatchException {
-    FileLock fileLock = locks.get(node.getUUID());
-    if (fileLock != null) {
-      if (lockId.equals(fileLock.getLockId())) {
-        getUserSession(workspace).addLockToken(fileLock.getLockToken());
-        unlockNode(node);
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Lock removed from node UUID: {}, lockId: {}", node.getUUID(), lockId);
+    String fileId = node.getUUID();
+    synchronized (stripe(fileId)) {
+      FileLock fileLock = findLock(fileId);
+      if (fileLock != null) {
+        if (lockId.equals(fileLock.getLockId())) {
+          getUserSession(workspace).addLockToken(fileLock.getLockToken());
+          unlockNode(node);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Lock removed from node UUID: {}, lockId: {}", fileId, lockId);
+          }
+        } else {
+          throw new LockMismatchException("Provided lockId doesn't match lock on the file", fileLock.getLockId());
         }
       } else {
-        throw new LockMismatchException("Provided lockId doesn't match lock on the file", fileLock.getLockId());
+        throw new LockMismatchException("File isn't locked", "");
       }
-    } else {
-      throw new LockMismatchException("File isn't locked", "");
     }
   }
 
+  /**
+   * Replaces the lock id of the node lock. The JCR lock is kept as is.
+   *
+   * @param node the node
+   * @param oldLockId the old lock id
+   * @param lockId the new lock id
+   * @throws RepositoryException the repository exception
+   * @throws LockMismatchException if the node isn't locked or old lockId
+   *           doesn't match the current one
+   */
+  public void relock(Node node, String oldLockId, String lockId) throws RepositoryException, LockMismatchException {
+    replaceLock(node.getUUID(), oldLockId, lockId);
+  }
+
   /**
    * Refreshes lock by prolonging the lock expires.
    *
@@ -166,21 +284,258 @@ public class WOPILockManagerPlugin extends BaseComponentPlugin {
    * @throws LockMismatchException the lock mismatch exception
    */
   public void refreshLock(Node node, String lockId) throws RepositoryException, LockMismatchException {
-    FileLock fileLock = locks.get(node.getUUID());
-    if (fileLock != null) {
-      if (lockId.equals(fileLock.getLockId())) {
-        fileLock.setExpires(System.currentTimeMillis() + LOCK_EXPIRES);
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Lock refreshed. UUID: {}, lockId: {}", node.getUUID(), lockId);
+    replaceLock(node.getUUID(), lockId, lockId);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void onMembersChanged() {
+    try {
+      expiresExecutor.execute(() -> rebalance());
+    } catch (RuntimeException e) {
+      LOG.warn("Cannot rebalance locks: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Replaces the lock with a refreshed one having given lock id. A refresh of
+   * the lock owned by this node replaces it with compare-and-set, thus a
+   * concurrent refresh is never lost, and it doesn't change the mirror. A
+   * relock, a refresh of the lock owned by other node or of an expired lock,
+   * writes the lock to the mirror first and this node owns the lock since.
+   * These are done under the file monitor, thus an expired lock cannot be
+   * refreshed while it's being released, see
+   * {@link #releaseExpired(Session, String, long)}.
+   *
+   * @param fileId the file id
+   * @param expectedLockId the expected lock id
+   * @param lockId the lock id
+   * @return the refreshed lock
+   * @throws LockMismatchException if the lock not found or expected lock id
+   *           doesn't match
+   */
+  protected FileLock replaceLock(String fileId, String expectedLockId, String lockId) throws LockMismatchException {
+    while (true) {
+      FileLock fileLock = findLock(fileId);
+      if (fileLock == null) {
+        throw new LockMismatchException("File isn't locked", "");
+      }
+      if (!expectedLockId.equals(fileLock.getLockId())) {
+        throw new LockMismatchException("Provided lockId doesn't match lock on the file", fileLock.getLockId());
+      }
+      long now = System.currentTimeMillis();
+      long expires = now + LOCK_EXPIRES;
+      boolean relock = !lockId.equals(expectedLockId);
+      if (!relock && locks.get(fileId) == fileLock && fileLock.getExpires() > now) {
+        FileLock refreshed = fileLock.withExpires(expires);
+        if (locks.replace(fileId, fileLock, refreshed)) {
+          expiresWheel.move(fileId, fileLock.getExpires(), refreshed.getExpires());
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Lock refreshed. UUID: {}, lockId: {}", fileId, lockId);
+          }
+          return refreshed;
         }
       } else {
-        throw new LockMismatchException("Provided lockId doesn't match lock on the file", fileLock.getLockId());
+        synchronized (stripe(fileId)) {
+          // released meanwhile if expired: the mirror hasn't it then
+          FileLock mirrored = lockCache.get(fileId);
+          if (mirrored != null && mirrored.isSameLock(fileLock) && Objects.equals(mirrored.getOwner(), fileLock.getOwner())) {
+            FileLock owned = fileLock.withLockId(lockId, expires).withOwner(cluster.getLocalMember(), expires);
+            lockCache.put(fileId, owned);
+            putOwnedLock(fileId, owned);
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Lock replaced. UUID: {}, old lockId: {}, lockId: {}, previous owner: {}",
+                        fileId,
+                        expectedLockId,
+                        lockId,
+                        fileLock.getOwner());
+            }
+            return owned;
+          }
+        }
       }
-    } else {
-      throw new LockMismatchException("File isn't locked", "");
+      // changed meanwhile
+    }
+  }
+
+  /**
+   * Puts the lock to the table of owned locks and schedules its expiration. The
+   * lock should be in the mirror already.
+   *
+   * @param fileId the file id
+   * @param fileLock the file lock
+   */
+  protected void putOwnedLock(String fileId, FileLock fileLock) {
+    FileLock previous = locks.put(fileId, fileLock);
+    if (previous != null) {
+      expiresWheel.cancel(fileId, previous.getExpires());
+    }
+    expiresWheel.schedule(fileId, fileLock.getExpires());
+  }
+
+  /**
+   * Removes the lock from the table of owned locks, if it's still there.
+   *
+   * @param fileId the file id
+   * @param fileLock the lock
+   */
+  protected void removeOwnedLock(String fileId, FileLock fileLock) {
+    if (locks.remove(fileId, fileLock)) {
+      expiresWheel.cancel(fileId, fileLock.getExpires());
     }
   }
 
+  /**
+   * Adopts the lock owned by other node. A lock handed over to this node keeps
+   * its expiration. The expiration of a lock of failed node isn't known, the
+   * lock gets full expiration time.
+   *
+   * @param fileId the file id
+   * @param mirrored the mirrored lock
+   * @return true, if adopted
+   */
+  protected boolean adoptLock(String fileId, FileLock mirrored) {
+    String localMember = cluster.getLocalMember();
+    synchronized (stripe(fileId)) {
+      FileLock current = lockCache.get(fileId);
+      if (locks.containsKey(fileId) || current == null || !current.isSameLock(mirrored)
+          || !Objects.equals(current.getOwner(), mirrored.getOwner())) {
+        // changed meanwhile
+        return false;
+      }
+      FileLock adopted;
+      if (localMember.equals(mirrored.getOwner())) {
+        adopted = mirrored;
+      } else {
+        long expires = Math.max(mirrored.getExpires(), System.currentTimeMillis() + LOCK_EXPIRES);
+        adopted = mirrored.withOwner(localMember, expires);
+        lockCache.put(fileId, adopted);
+      }
+      putOwnedLock(fileId, adopted);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Lock adopted. UUID: {}, previous owner: {}", fileId, mirrored.getOwner());
+    }
+    return true;
+  }
+
+  /**
+   * Adopts the mirrored locks handed over to this node and the locks of failed
+   * nodes this node is chosen for. It runs in the expiration thread, after
+   * members joined or left.
+   */
+  protected void rebalance() {
+    Collection<String> members = cluster.getMembers();
+    ConsistentHash ring = new ConsistentHash(members);
+    String localMember = cluster.getLocalMember();
+    Map<String, FileLock> orphans = new HashMap<>();
+    try {
+      lockCache.select(new CachedObjectSelector<String, FileLock>() {
+
+        @Override
+        public boolean select(String fileId, ObjectCacheInfo<? extends FileLock> ocinfo) {
+          return !locks.containsKey(fileId);
+        }
+
+        @Override
+        public void onSelect(ExoCache<? extends String, ? extends FileLock> cache,
+                             String fileId,
+                             ObjectCacheInfo<? extends FileLock> ocinfo) throws Exception {
+          FileLock mirrored = ocinfo.get();
+          if (mirrored != null && (localMember.equals(mirrored.getOwner())
+              || !members.contains(mirrored.getOwner()) && localMember.equals(ring.getOwner(fileId)))) {
+            orphans.put(fileId, mirrored);
+          }
+        }
+      });
+    } catch (Exception e) {
+      LOG.error("Cannot find locks to adopt in the mirror", e);
+    }
+    int adopted = 0;
+    for (Entry<String, FileLock> orphan : orphans.entrySet()) {
+      if (adoptLock(orphan.getKey(), orphan.getValue())) {
+        adopted++;
+      }
+    }
+    LOG.info("Lock cluster members: {}, locks owned: {}, adopted: {}", ring.getMembers().size(), locks.size(), adopted);
+  }
+
+  /**
+   * Hands the owned locks over to other members chosen by consistent hashing,
+   * the locks keep their expiration. The new owners adopt them when they learn
+   * this node left. Without other members, the locks stay in the mirror for the
+   * next member.
+   */
+  protected void handOver() {
+    List<String> members = new ArrayList<>(cluster.getMembers());
+    members.remove(cluster.getLocalMember());
+    if (members.isEmpty()) {
+      return;
+    }
+    ConsistentHash ring = new ConsistentHash(members);
+    int handedOver = 0;
+    for (String fileId : locks.keySet()) {
+      synchronized (stripe(fileId)) {
+        FileLock fileLock = locks.get(fileId);
+        if (fileLock != null && findLock(fileId) == fileLock) {
+          lockCache.put(fileId, fileLock.withOwner(ring.getOwner(fileId), fileLock.getExpires()));
+          removeOwnedLock(fileId, fileLock);
+          handedOver++;
+        }
+      }
+    }
+    LOG.info("Locks handed over to {} members: {}", members.size(), handedOver);
+  }
+
+  /**
+   * Finds the lock: in the owned locks or in the mirror if owned by other
+   * node. A lock of the local table is used only while the mirror has the same
+   * lock owned by this node, otherwise it was changed, taken over or released
+   * on other node and it's removed from the table.
+   *
+   * @param fileId the file id
+   * @return the file lock or <code>null</code>
+   */
+  protected FileLock findLock(String fileId) {
+    FileLock mirrored = lockCache.get(fileId);
+    FileLock fileLock = locks.get(fileId);
+    if (fileLock != null) {
+      if (mirrored != null && fileLock.isSameLock(mirrored) && cluster.getLocalMember().equals(mirrored.getOwner())) {
+        return fileLock;
+      }
+      removeOwnedLock(fileId, fileLock);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Stale lock removed. UUID: {}", fileId);
+      }
+    }
+    return mirrored;
+  }
+
+  /**
+   * Removes the lock from the local table and the mirror.
+   *
+   * @param fileId the file id
+   */
+  protected void removeLock(String fileId) {
+    FileLock fileLock = locks.remove(fileId);
+    if (fileLock != null) {
+      expiresWheel.cancel(fileId, fileLock.getExpires());
+    }
+    lockCache.remove(fileId);
+  }
+
+  /**
+   * Gets the monitor of lock acquisition and release for the file.
+   *
+   * @param fileId the file id
+   * @return the monitor
+   */
+  protected Object stripe(String fileId) {
+    return stripes[(fileId.hashCode() & Integer.MAX_VALUE) % stripes.length];
+  }
+
   /**
    * Gets the user session.
    *
@@ -197,55 +552,115 @@ public class WOPILockManagerPlugin extends BaseComponentPlugin {
   }
 
   /**
-   * Gets the system session.
+   * Gets the workspace of the lock.
    *
-   * @return the system session
+   * @param fileLock the file lock
+   * @return the workspace name
    * @throws RepositoryException the repository exception
    */
-  protected Session getSystemSession() throws RepositoryException {
-    String workspace = jcrService.getCurrentRepository().getConfiguration().getDefaultWorkspaceName();
-    SessionProvider sp = SessionProvider.createSystemProvider();
-    return sp.getSession(workspace, jcrService.getCurrentRepository());
+  protected String getWorkspace(FileLock fileLock) throws RepositoryException {
+    return fileLock.getWorkspace() != null ? fileLock.getWorkspace()
+                                           : jcrService.getCurrentRepository().getConfiguration().getDefaultWorkspaceName();
   }
 
   /**
-   * Removes the expired locks or locks with expiration time less than EXPIRES_DELAY.
+   * Removes the expired locks owned by this node. Only the locks of elapsed
+   * wheel ticks are checked, they are released in batches: one system session
+   * per workspace.
+   *
+   * @param now the current time
    */
-  protected void removeExpired() {
-    try {
-      locks.select(new CachedObjectSelector<String, FileLock>() {
-
-        @Override
-        public boolean select(String key, ObjectCacheInfo<? extends FileLock> ocinfo) {
-          FileLock lock = ocinfo.get();
-          return lock != null ? (lock.getExpires() - System.currentTimeMillis() < EXPIRES_DELAY) : false;
-        }
-
-        @Override
-        public void onSelect(ExoCache<? extends String, ? extends FileLock> cache,
-                             String fileId,
-                             ObjectCacheInfo<? extends FileLock> ocinfo) throws Exception {
-          FileLock lock = ocinfo.get();
+  protected void removeExpired(long now) {
+    Map<String, List<String>> expired = new HashMap<>();
+    for (String fileId : expiresWheel.advance(now)) {
+      FileLock fileLock = locks.get(fileId);
+      if (fileLock != null) {
+        if (fileLock.getExpires() <= now) {
           try {
-            Session session = getSystemSession();
-            session.addLockToken(lock.getLockToken());
-            Node node = session.getNodeByUUID(fileId);
-            if (node.isLocked()) {
-              unlockNode(node);
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("Node unlocked (lock expired). UUID: {}", fileId);
-              }
-            }
+            expired.computeIfAbsent(getWorkspace(fileLock), ws -> new ArrayList<>()).add(fileId);
           } catch (RepositoryException e) {
-            LOG.warn("Cannot unlock node. UUID {}, {}", fileId, e.getMessage());
+            LOG.error("Cannot get workspace of expired lock. UUID " + fileId, e);
+            retryExpired(fileId, now);
           }
+        } else {
+          // refreshed meanwhile or expires on next wheel revolution
+          expiresWheel.schedule(fileId, fileLock.getExpires());
         }
-      });
-    } catch (Exception e) {
-      LOG.error("Cannot unlock expired nodes", e);
+      }
+    }
+    for (Entry<String, List<String>> batch : expired.entrySet()) {
+      SessionProvider sp = SessionProvider.createSystemProvider();
+      try {
+        Session session = sp.getSession(batch.getKey(), jcrService.getCurrentRepository());
+        for (String fileId : batch.getValue()) {
+          releaseExpired(session, fileId, now);
+        }
+      } catch (Exception e) {
+        LOG.error("Cannot unlock expired nodes in workspace " + batch.getKey(), e);
+        for (String fileId : batch.getValue()) {
+          retryExpired(fileId, now);
+        }
+      } finally {
+        sp.close();
+      }
     }
   }
 
+  /**
+   * Releases the lock if it's still expired and owned by this node.
+   *
+   * @param session the system session
+   * @param fileId the file id
+   * @param now the current time
+   */
+  protected void releaseExpired(Session session, String fileId, long now) {
+    synchronized (stripe(fileId)) {
+      FileLock fileLock = locks.get(fileId);
+      if (fileLock == null || findLock(fileId) != fileLock) {
+        // released, changed or taken over on other node
+        return;
+      }
+      if (fileLock.getExpires() > now) {
+        // refreshed meanwhile
+        expiresWheel.schedule(fileId, fileLock.getExpires());
+        return;
+      }
+      try {
+        session.addLockToken(fileLock.getLockToken());
+        Node node = session.getNodeByUUID(fileId);
+        if (node.isLocked()) {
+          unlockNode(node);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Node unlocked (lock expired). UUID: {}", fileId);
+          }
+        } else {
+          removeLock(fileId);
+        }
+      } catch (ItemNotFoundException e) {
+        // the node was removed, its lock too
+        removeLock(fileId);
+      } catch (RepositoryException e) {
+        // keep the lock: dropping it would leave the JCR lock without its
+        // WOPI lock and the file could not be locked until the JCR lock times out
+        LOG.warn("Cannot unlock node, will retry. UUID {}, {}", fileId, e.getMessage());
+        retryExpired(fileId, now);
+      } finally {
+        session.removeLockToken(fileLock.getLockToken());
+      }
+    }
+  }
+
+  /**
+   * Schedules the expired lock to be released on next tick, after a failed
+   * release.
+   *
+   * @param fileId the file id
+   * @param now the current time
+   */
+  protected void retryExpired(String fileId, long now) {
+    expiresWheel.schedule(fileId, now + EXPIRES_TICK);
+  }
+
   /**
    * Lock node.
    *
@@ -261,8 +676,15 @@ public class WOPILockManagerPlugin extends BaseComponentPlugin {
       LOG.warn("Cannot keep lock in lock service", e.getMessage());
     }
     long expires = System.currentTimeMillis() + LOCK_EXPIRES;
-    FileLock fileLock = new FileLock(lockId, lock.getLockToken(), expires);
-    locks.put(lock.getNode().getUUID(), fileLock);
+    FileLock fileLock = new FileLock(lockId,
+                                     lock.getLockToken(),
+                                     node.getSession().getWorkspace().getName(),
+                                     expires,
+                                     cluster.getLocalMember());
+    String fileId = lock.getNode().getUUID();
+    // the mirror first: the owned lock is valid only if the mirror has it
+    lockCache.put(fileId, fileLock);
+    putOwnedLock(fileId, fileLock);
   }
 
   /**
@@ -273,7 +695,7 @@ public class WOPILockManagerPlugin extends BaseComponentPlugin {
    */
   private void unlockNode(Node node) throws RepositoryException {
     node.unlock();
-    locks.remove(node.getUUID());
+    removeLock(node.getUUID());
     try {
       LockUtil.removeLock(node);
     } catch (Exception e) {
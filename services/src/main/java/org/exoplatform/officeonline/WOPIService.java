@@ -9,29 +9,36 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
-import javax.jcr.AccessDeniedException;
+import javax.jcr.Item;
 import javax.jcr.ItemExistsException;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 
 import org.apache.commons.lang.StringUtils;
 
-import org.exoplatform.commons.utils.MimeTypeResolver;
+import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.container.PortalContainer;
 import org.exoplatform.container.component.ComponentPlugin;
 import org.exoplatform.container.xml.InitParams;
@@ -39,7 +46,6 @@ import org.exoplatform.container.xml.PropertiesParam;
 import org.exoplatform.ecm.connector.fckeditor.FCKUtils;
 import org.exoplatform.ecm.utils.lock.LockUtil;
 import org.exoplatform.ecm.utils.text.Text;
-import org.exoplatform.ecm.webui.utils.PermissionUtil;
 import org.exoplatform.ecm.webui.utils.Utils;
 import org.exoplatform.officeonline.exception.ActionNotFoundException;
 import org.exoplatform.officeonline.exception.EditorLinkNotFoundException;
@@ -75,6 +81,9 @@ import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.organization.OrganizationService;
 import org.exoplatform.services.organization.User;
+import org.exoplatform.services.rpc.RPCException;
+import org.exoplatform.services.rpc.RPCService;
+import org.exoplatform.services.rpc.RemoteCommand;
 import org.exoplatform.services.security.Authenticator;
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.IdentityRegistry;
@@ -105,6 +114,12 @@ public class WOPIService extends AbstractOfficeOnlineService {
   /** The Constant MSOFFICE_IS_EDITOR_VERSION. */
   protected static final String                               MSOFFICE_IS_EDITOR_VERSION          = "msoffice:isEditorVersion";
 
+  /** The Constant MSOFFICE_EDITOR_VERSION_DATE. */
+  protected static final String                               MSOFFICE_EDITOR_VERSION_DATE        = "msoffice:editorVersionDate";
+
+  /** The Constant MSOFFICE_CONTENT_HASH. */
+  protected static final String                               MSOFFICE_CONTENT_HASH               = "msoffice:contentHash";
+
   /** The Constant BASE_FILE_NAME. */
   protected static final String                               BASE_FILE_NAME                      = "BaseFileName";
 
@@ -239,6 +254,33 @@ public class WOPIService extends AbstractOfficeOnlineService {
   /** The Constant VERSION_ACCUMULATION. */
   protected static final String                               VERSION_ACCUMULATION                = "version-accumulation";
 
+  /** The Constant VERSION_COALESCING_WINDOW. */
+  protected static final String                               VERSION_COALESCING_WINDOW           = "version-coalescing-window";
+
+  /** The Constant PUTFILE_CONFIGURATION_PROPERTIES. */
+  protected static final String                               PUTFILE_CONFIGURATION_PROPERTIES    = "putfile-configuration";
+
+  /** The Constant PUTFILE_ASYNC. */
+  protected static final String                               PUTFILE_ASYNC                       = "async";
+
+  /** The Constant PUTFILE_WORKERS. */
+  protected static final String                               PUTFILE_WORKERS                     = "workers";
+
+  /** The Constant PUTFILE_QUEUE_SIZE. */
+  protected static final String                               PUTFILE_QUEUE_SIZE                  = "queue-size";
+
+  /** The Constant PUTFILE_SHUTDOWN_TIMEOUT. */
+  protected static final long                                 PUTFILE_SHUTDOWN_TIMEOUT            = 60000;
+
+  /** The Constant LISTENERS_CONFIGURATION_PROPERTIES. */
+  protected static final String                               LISTENERS_CONFIGURATION_PROPERTIES  = "listeners-configuration";
+
+  /** The Constant LISTENERS_QUEUE_SIZE. */
+  protected static final String                               LISTENERS_QUEUE_SIZE                = "queue-size";
+
+  /** The Constant LISTENERS_POLICY. */
+  protected static final String                               LISTENERS_POLICY                    = "policy";
+
   /** The Constant WOPI_URL. */
   protected static final String                               WOPI_URL                            = "wopi-url";
 
@@ -252,6 +294,21 @@ public class WOPIService extends AbstractOfficeOnlineService {
   public static final String                                  USERINFO_CACHE_NAME                 =
                                                                                   "officeonline.userinfo.Cache".intern();
 
+  /** The Constant FILEINFO_USER_CACHE_NAME. */
+  public static final String                                  FILEINFO_USER_CACHE_NAME            =
+                                                                                       "officeonline.fileinfo.user.Cache".intern();
+
+  /** The Constant FILEINFO_FILE_CACHE_NAME. */
+  public static final String                                  FILEINFO_FILE_CACHE_NAME            =
+                                                                                       "officeonline.fileinfo.file.Cache".intern();
+
+  /** The Constant EDITOR_LINK_CACHE_NAME. */
+  public static final String                                  EDITOR_LINK_CACHE_NAME              =
+                                                                                       "officeonline.editorlink.Cache".intern();
+
+  /** The Constant MAX_DOCUMENTS_SUPPORT, the documents of one support request. */
+  public static final int                                     MAX_DOCUMENTS_SUPPORT               = 200;
+
   /** The Constant EDIT_ACTION. */
   public static final String                                  EDIT_ACTION                         = "edit";
 
@@ -282,6 +339,9 @@ public class WOPIService extends AbstractOfficeOnlineService {
   /** The discovery plugin. */
   protected WOPIDiscoveryPlugin                               discoveryPlugin;
 
+  /** The proof key verifier. */
+  protected ProofKeyVerifier                                  proofKeyVerifier;
+
   /** The wopi availability checker. */
   protected WOPIAvailabilityCheckerPlugin                     wopiAvailabilityChecker;
 
@@ -309,12 +369,50 @@ public class WOPIService extends AbstractOfficeOnlineService {
   /** The user info cache. */
   protected ExoCache<String, String>                          userInfoCache;
 
+  /** The CheckFileInfo fragments of users. */
+  protected ExoCache<String, String>                          userFileInfoCache;
+
+  /** The CheckFileInfo fragments of files. */
+  protected ExoCache<String, FileInfoFragment>                fileInfoCache;
+
+  /** The editor links of files by action, portal and base URL. */
+  protected ExoCache<String, Map<String, String>>             editorLinkCache;
+
+  /** The RPC service, <code>null</code> if not clustered. */
+  protected final RPCService                                  rpcService;
+
+  /** The command removing editor links of a file on other nodes. */
+  protected final RemoteCommand                               invalidateLinksCommand;
+
+  /** The CheckFileInfo fragment same for all files and users. */
+  protected String                                            staticFileInfo;
+
   /** The documentTypePlugin. */
   protected DocumentTypePlugin                                documentTypePlugin;
 
-  /** The listeners. */
-  protected final ConcurrentLinkedQueue<OfficeOnlineListener> listeners                           =
-                                                                        new ConcurrentLinkedQueue<OfficeOnlineListener>();
+  /** The PutFile executor, <code>null</code> if content saved synchronously. */
+  protected StripedExecutor                                   putFileExecutor;
+
+  /** The version coalescing window in milliseconds, 0 if disabled. */
+  protected long                                              versionCoalescingWindow;
+
+  /** The versions not yet checked in, by file key. */
+  protected final ConcurrentHashMap<String, PendingVersion>   pendingVersions                     = new ConcurrentHashMap<>();
+
+  /** The locks of files versioning, by file key, removed when not used. */
+  protected final ConcurrentHashMap<String, VersionLock>      versionLocks                        = new ConcurrentHashMap<>();
+
+  /** The executor closing coalescing windows. */
+  protected ScheduledExecutorService                          versionExecutor;
+
+  /** The event bus of the listeners. */
+  protected final OfficeOnlineEventBus                        eventBus                            = new OfficeOnlineEventBus();
+
+  /** The queue size of a listener. */
+  protected int                                               listenerQueueSize;
+
+  /** The policy when a listener queue is full. */
+  protected OfficeOnlineEventBus.Policy                       listenerPolicy;
 
   /**
    * Instantiates a new WOPI service.
@@ -366,17 +464,90 @@ public class WOPIService extends AbstractOfficeOnlineService {
     }
 
     this.userInfoCache = cacheService.getCacheInstance(USERINFO_CACHE_NAME);
+    this.userFileInfoCache = cacheService.getCacheInstance(FILEINFO_USER_CACHE_NAME);
+    this.fileInfoCache = cacheService.getCacheInstance(FILEINFO_FILE_CACHE_NAME);
+    this.editorLinkCache = cacheService.getCacheInstance(EDITOR_LINK_CACHE_NAME);
+    // editor links are cached per node, their removal is broadcast to the cluster
+    this.rpcService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(RPCService.class);
+    if (rpcService != null) {
+      this.invalidateLinksCommand = rpcService.registerCommand(new RemoteCommand() {
+
+        @Override
+        public String getId() {
+          return WOPIService.class.getName() + "-invalidateEditorLinks";
+        }
+
+        @Override
+        public Serializable execute(Serializable[] args) throws Throwable {
+          editorLinkCache.remove((String) args[0]);
+          return null;
+        }
+      });
+    } else {
+      this.invalidateLinksCommand = null;
+    }
     PropertiesParam breadcrumbParam = initParams.getPropertiesParam(BREADCRUMB_CONFIGURATION_PROPERTIES);
     brandName = breadcrumbParam.getProperty(BRAND_NAME);
+    CheckFileInfo.Fragment staticFragment = new CheckFileInfo.Fragment();
+    addHostCapabilitiesProperties(staticFragment);
+    addStaticBreadcrumbProperties(staticFragment);
+    staticFileInfo = staticFragment.build();
 
     PropertiesParam wopiFilesUrlParam = initParams.getPropertiesParam(WOPI_CONFIGURATION_PROPERTIES);
     wopiUrl = wopiFilesUrlParam.getProperty(WOPI_URL);
 
     PropertiesParam versionAccumulationParam = initParams.getPropertiesParam(VERSION_ACCUMULATION_PROPERTIES);
     versionAccumulation = Boolean.valueOf(versionAccumulationParam.getProperty(VERSION_ACCUMULATION));
+    versionCoalescingWindow = getIntProperty(versionAccumulationParam, VERSION_COALESCING_WINDOW, 0) * 1000L;
+    if (versionCoalescingWindow > 0) {
+      versionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "officeonline-version");
+        thread.setDaemon(true);
+        return thread;
+      });
+      LOG.info("PutFile versions coalesced within {} ms", versionCoalescingWindow);
+    }
+
+    PropertiesParam putFileParam = initParams.getPropertiesParam(PUTFILE_CONFIGURATION_PROPERTIES);
+    if (putFileParam != null && Boolean.valueOf(putFileParam.getProperty(PUTFILE_ASYNC))) {
+      int workers = getIntProperty(putFileParam, PUTFILE_WORKERS, 4);
+      int queueSize = getIntProperty(putFileParam, PUTFILE_QUEUE_SIZE, 100);
+      putFileExecutor = new StripedExecutor("officeonline-putfile", workers, queueSize);
+      LOG.info("PutFile content saved asynchronously by {} workers", workers);
+    }
+
+    PropertiesParam listenersParam = initParams.getPropertiesParam(LISTENERS_CONFIGURATION_PROPERTIES);
+    if (listenersParam != null) {
+      listenerQueueSize = getIntProperty(listenersParam, LISTENERS_QUEUE_SIZE, 1000);
+      listenerPolicy = OfficeOnlineEventBus.Policy.fromName(listenersParam.getProperty(LISTENERS_POLICY),
+                                                            OfficeOnlineEventBus.Policy.BLOCK);
+    } else {
+      listenerQueueSize = 1000;
+      listenerPolicy = OfficeOnlineEventBus.Policy.BLOCK;
+    }
     usersPath = hierarchyCreator.getJcrPath(BasePath.CMS_USERS_PATH);
   }
 
+  /**
+   * Gets the int property.
+   *
+   * @param param the param
+   * @param name the name
+   * @param defaultValue the default value
+   * @return the int property
+   */
+  protected int getIntProperty(PropertiesParam param, String name, int defaultValue) {
+    String value = param.getProperty(name);
+    if (value != null && !value.trim().isEmpty()) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        LOG.warn("Wrong {} value: {}, using {}", name, value, defaultValue);
+      }
+    }
+    return defaultValue;
+  }
+
   /**
    * Put file.
    *
@@ -386,102 +557,366 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @throws Exception the exception
    */
   public void putFile(EditorConfig config, String lockId, InputStream data) throws Exception {
-    Node node = nodeByUUID(config.getFileId(), config.getWorkspace());
+    putFile(config, lockId, data, -1);
+  }
+
+  /**
+   * Put file. The data is spooled to a temporary file first. Permissions and
+   * the lock are checked before returning, but if asynchronous saving enabled,
+   * the content is saved to JCR later by a worker. Saves of the same file are
+   * done in the order of requests.
+   *
+   * @param config the config
+   * @param lockId the lock id
+   * @param data the data
+   * @param maxSize the max expected size, or <code>-1</code> if not limited
+   * @return true, if the content saved before returning, false if it will be
+   *         saved asynchronously
+   * @throws Exception the exception
+   */
+  public boolean putFile(EditorConfig config, String lockId, InputStream data, long maxSize) throws Exception {
+    DocumentContext document = getDocument(config);
+    Node node = document.getNode();
+    SpooledContent content = null;
     try {
-      if (canEdit(node) && config.permissions.contains(Permissions.USER_CAN_WRITE)) {
-        Node content = node.getNode(JCR_CONTENT);
+      if (document.canEdit() && config.permissions.contains(Permissions.USER_CAN_WRITE)) {
         // XXX: assuming that node is locked for WOPI if it has MSOFFICE_LOCK_ID property
         // for fixing Word Online issue in Chrome v80+
         if (!node.isLocked()) {
-          long size = content.getProperty(JCR_DATA).getLength();
+          long size = node.getNode(JCR_CONTENT).getProperty(JCR_DATA).getLength();
           if (size != 0) {
             throw new SizeMismatchException("File is unlocked and size isn't equal to 0.", "");
           }
         } else {
           checkNodeLock(node, lockId);
         }
+        content = SpooledContent.spool(data, maxSize);
+        if (putFileExecutor != null) {
+          SpooledContent spooled = content;
+          putFileExecutor.execute(config.getFileId(), () -> saveContentAsync(config, lockId, spooled));
+          // the worker owns the content now
+          content = null;
+          return false;
+        }
+        saveContent(node, config, content);
+        return true;
+      } else {
+        throw new PermissionDeniedException("Cannnot update file. Permission denied");
+      }
+    } catch (RepositoryException e) {
+      LOG.error("Cannot save document content.", e);
+      throw new OfficeOnlineException("Cannot perform putFile operation. FileId: " + config.getFileId() + ", workspace: "
+          + config.getWorkspace());
+    } finally {
+      if (content != null) {
+        content.close();
+      }
+      if (data != null) {
+        try {
+          data.close();
+        } catch (IOException e) {
+          LOG.error("Error closing data stream. FileID:" + config.getFileId());
+        }
+      }
+    }
+  }
+
+  /**
+   * Saves the spooled content in a worker thread, on behalf of the config
+   * user. The lock is checked again as it may change since the request.
+   *
+   * @param config the config
+   * @param lockId the lock id
+   * @param content the content, it's closed after saving
+   */
+  protected void saveContentAsync(EditorConfig config, String lockId, SpooledContent content) {
+    ConversationState contextState = ConversationState.getCurrent();
+    SessionProvider contextProvider = sessionProviders.getSessionProvider(null);
+    try {
+      if (setUserConvoState(config.getUserId())) {
+        SessionProvider userProvider = sessionProviders.getSessionProvider(null);
+        try {
+          Node node = nodeByUUID(config.getFileId(), config.getWorkspace());
+          checkNodeLock(node, lockId);
+          saveContent(node, config, content);
+        } finally {
+          restoreConvoState(contextState, contextProvider);
+          userProvider.close();
+        }
+      } else {
+        LOG.error("Cannot save document content, user not found: " + config.getUserId() + ". FileId: " + config.getFileId());
+      }
+    } catch (Throwable e) {
+      LOG.error("Cannot save document content. FileId: " + config.getFileId() + ", workspace: " + config.getWorkspace(), e);
+    } finally {
+      content.close();
+    }
+  }
 
-        boolean versionable = node.isNodeType(MIX_VERSIONABLE);
+  /**
+   * Saves the content to the node, creates a new version and notifies the
+   * listeners. The content and the editor version metadata are saved at once:
+   * the version owner and {@link #MSOFFICE_EDITOR_VERSION_DATE} are written
+   * with the content and not cleared after the check-in, see
+   * {@link #isEditorVersion(Node)}. If version coalescing enabled, the version
+   * is checked in when the window closes and content saved by the same user
+   * meanwhile replaces the pending version. Nothing is saved if the content is
+   * the same as the node already has, see {@link #isSameContent(Node, SpooledContent)}.
+   *
+   * @param node the node
+   * @param config the config
+   * @param content the content
+   * @throws RepositoryException the repository exception
+   * @throws OfficeOnlineException the office online exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected void saveContent(Node node, EditorConfig config, SpooledContent content) throws RepositoryException,
+                                                                                      OfficeOnlineException,
+                                                                                      IOException {
+    String key = fileKey(node);
+    VersionLock versionLock = lockVersion(key);
+    try {
+      // checked under the lock: a concurrent save could change the content
+      if (isSameContent(node, content)) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Content not changed, skipping save. FileId: " + node.getUUID());
+        }
+        return;
+      }
+      if (!node.isNodeType(MSOFFICE_FILE) && node.canAddMixin(MSOFFICE_FILE)) {
+        // the mixin defines editor version properties, it's added by the system
+        addMixin(node, MSOFFICE_FILE);
+        node = node.getSession().getNodeByUUID(node.getUUID());
+      }
+      boolean versionable = node.isNodeType(MIX_VERSIONABLE);
+      boolean coalescing = versionable && versionCoalescingWindow > 0;
+      PendingVersion pending = coalescing ? pendingVersions.get(key) : null;
+      if (pending != null && !pending.getUserId().equals(config.getUserId())) {
+        // the pending content belongs to another user: check it in as their version
+        commitPendingVersion(key, pending);
+        pending = null;
+      }
+      Node contentNode = node.getNode(JCR_CONTENT);
+      if (pending == null) {
         Node frozen = versionable ? getFrozen(node) : node;
-        Boolean isEditorVersion = isEditorVersion(frozen);
         Calendar lastModified = node.getProperty(EXO_LAST_MODIFIED_DATE).getDate();
         Calendar versionDate = frozen.getProperty(EXO_LAST_MODIFIED_DATE).getDate();
-
         // Create a version of the manually uploaded draft if exists
-        if (versionDate.getTimeInMillis() <= lastModified.getTimeInMillis() && !isEditorVersion) {
+        if (versionDate.getTimeInMillis() <= lastModified.getTimeInMillis() && !isEditorVersion(frozen)) {
           if (LOG.isDebugEnabled()) {
             LOG.debug("Creating version from draft");
           }
           createVersionOfDraft(node);
         }
+      }
 
-        Calendar editedTime = Calendar.getInstance();
-        content.setProperty(JCR_LAST_MODIFIED, editedTime);
-        if (content.hasProperty(EXO_DATE_MODIFIED)) {
-          content.setProperty(EXO_DATE_MODIFIED, editedTime);
-        }
-        if (content.hasProperty(EXO_LAST_MODIFIED_DATE)) {
-          content.setProperty(EXO_LAST_MODIFIED_DATE, editedTime);
-        }
-        if (node.hasProperty(EXO_LAST_MODIFIED_DATE)) {
-          node.setProperty(EXO_LAST_MODIFIED_DATE, editedTime);
-        }
-        if (node.hasProperty(EXO_DATE_MODIFIED)) {
-          node.setProperty(EXO_DATE_MODIFIED, editedTime);
-        }
-        if (node.hasProperty(EXO_LAST_MODIFIER)) {
-          node.setProperty(EXO_LAST_MODIFIER, config.getUserId());
-        }
+      Calendar editedTime = Calendar.getInstance();
+      contentNode.setProperty(JCR_LAST_MODIFIED, editedTime);
+      if (contentNode.hasProperty(EXO_DATE_MODIFIED)) {
+        contentNode.setProperty(EXO_DATE_MODIFIED, editedTime);
+      }
+      if (contentNode.hasProperty(EXO_LAST_MODIFIED_DATE)) {
+        contentNode.setProperty(EXO_LAST_MODIFIED_DATE, editedTime);
+      }
+      if (node.hasProperty(EXO_LAST_MODIFIED_DATE)) {
+        node.setProperty(EXO_LAST_MODIFIED_DATE, editedTime);
+      }
+      if (node.hasProperty(EXO_DATE_MODIFIED)) {
+        node.setProperty(EXO_DATE_MODIFIED, editedTime);
+      }
+      if (node.hasProperty(EXO_LAST_MODIFIER)) {
+        node.setProperty(EXO_LAST_MODIFIER, config.getUserId());
+      }
+      node.setProperty(MSOFFICE_VERSION_OWNER, config.getUserId());
+      node.setProperty(MSOFFICE_EDITOR_VERSION_DATE, editedTime);
+      node.setProperty(MSOFFICE_CONTENT_HASH, content.getHash());
+      if (node.hasProperty(MSOFFICE_IS_EDITOR_VERSION)) {
+        // the legacy flag isn't used anymore
+        node.setProperty(MSOFFICE_IS_EDITOR_VERSION, (Value) null);
+      }
 
-        content.setProperty(JCR_DATA, data);
+      try (InputStream data = content.openStream()) {
+        contentNode.setProperty(JCR_DATA, data);
         node.save();
+      }
 
-        String versioningUser = getVersioningUser(frozen);
-
-        long timeout = System.currentTimeMillis() - versionDate.getTimeInMillis();
-        // Version accumulation for same user
-        if (versionAccumulation && versionable && config.getUserId().equals(versioningUser) && timeout < VERSION_TIMEOUT) {
-          String versionName = node.getBaseVersion().getName();
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Version accumulation: removig version " + versionName + " from node " + node.getUUID());
-          }
-          node.getVersionHistory().removeVersion(versionName);
+      if (coalescing) {
+        if (pending == null) {
+          PendingVersion newPending = new PendingVersion(node.getSession().getWorkspace().getName(),
+                                                         node.getUUID(),
+                                                         config.getUserId());
+          pendingVersions.put(key, newPending);
+          newPending.setFuture(versionExecutor.schedule(() -> commitPendingVersion(key, newPending),
+                                                        versionCoalescingWindow,
+                                                        TimeUnit.MILLISECONDS));
+        } else if (LOG.isDebugEnabled()) {
+          LOG.debug("Content of pending version replaced. FileId: " + node.getUUID());
         }
-        node.setProperty(MSOFFICE_VERSION_OWNER, config.getUserId());
-        node.setProperty(MSOFFICE_IS_EDITOR_VERSION, true);
+      } else {
+        createVersion(node, config.getUserId());
+      }
+    } finally {
+      unlockVersion(key, versionLock);
+    }
+    invalidateFileInfo(node);
 
-        node.save();
-        if (checkout(node)) {
-          // Make a new version from the downloaded state
-          node.checkin();
-          // Since 1.2.0-RC01 we check-out the document to let (more) other
-          // actions in ECMS appear on it
-          node.checkout();
+    onSaved(config);
+  }
+
+  /**
+   * Checks if the node already has the content. The stored hash is trusted only
+   * if the node content was last saved by the editor, i.e. its modification
+   * date is {@link #MSOFFICE_EDITOR_VERSION_DATE}, otherwise the content may be
+   * changed by other means since.
+   *
+   * @param node the node
+   * @param content the content
+   * @return true, if the node content is the same
+   * @throws RepositoryException the repository exception
+   */
+  protected boolean isSameContent(Node node, SpooledContent content) throws RepositoryException {
+    if (node.hasProperty(MSOFFICE_CONTENT_HASH) && node.hasProperty(MSOFFICE_EDITOR_VERSION_DATE)) {
+      Node contentNode = node.getNode(JCR_CONTENT);
+      return contentNode.getProperty(JCR_DATA).getLength() == content.getSize()
+          && contentNode.hasProperty(JCR_LAST_MODIFIED)
+          && contentNode.getProperty(JCR_LAST_MODIFIED).getDate().getTimeInMillis() == node.getProperty(MSOFFICE_EDITOR_VERSION_DATE)
+                                                                                             .getDate()
+                                                                                             .getTimeInMillis()
+          && content.getHash().equals(node.getProperty(MSOFFICE_CONTENT_HASH).getString());
+    }
+    return false;
+  }
+
+  /**
+   * Creates a version of the node. With version accumulation, previous version
+   * is removed if it was saved by the same user recently.
+   *
+   * @param node the node
+   * @param userId the user id
+   * @throws RepositoryException the repository exception
+   */
+  protected void createVersion(Node node, String userId) throws RepositoryException {
+    if (node.isNodeType(MIX_VERSIONABLE)) {
+      Node frozen = getFrozen(node);
+      // Only versions saved by the editor have a valid owner
+      String versioningUser = isEditorVersion(frozen) ? getVersioningUser(frozen) : null;
+      long timeout = System.currentTimeMillis() - frozen.getProperty(EXO_LAST_MODIFIED_DATE).getDate().getTimeInMillis();
+      // Version accumulation for same user
+      if (versionAccumulation && userId.equals(versioningUser) && timeout < VERSION_TIMEOUT) {
+        String versionName = node.getBaseVersion().getName();
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Version accumulation: removig version " + versionName + " from node " + node.getUUID());
         }
+        node.getVersionHistory().removeVersion(versionName);
+      }
+    }
+    if (checkout(node)) {
+      // Make a new version from the downloaded state
+      node.checkin();
+      // Since 1.2.0-RC01 we check-out the document to let (more) other
+      // actions in ECMS appear on it
+      node.checkout();
+    }
+  }
 
-        onSaved(config);
+  /**
+   * Checks in the pending version of the file if there is such, it's used when
+   * the editing finished before the coalescing window closed.
+   *
+   * @param fileId the file id
+   * @param workspace the workspace, can be <code>null</code> for default one
+   * @throws RepositoryException the repository exception
+   */
+  public void commitPendingVersion(String fileId, String workspace) throws RepositoryException {
+    if (versionCoalescingWindow > 0) {
+      if (workspace == null) {
+        workspace = getDefaultWorkspace();
+      }
+      String key = fileKey(workspace, fileId);
+      PendingVersion pending = pendingVersions.get(key);
+      if (pending != null) {
+        commitPendingVersion(key, pending);
+      }
+    }
+  }
 
-        // Remove properties from node
-        node.setProperty(MSOFFICE_VERSION_OWNER, "");
-        node.setProperty(MSOFFICE_IS_EDITOR_VERSION, false);
-        node.save();
-        if (data != null) {
-          try {
-            data.close();
-          } catch (IOException e) {
-            LOG.error("Error closing data stream. FileID:" + config.getFileId());
+  /**
+   * Checks in the pending version on behalf of its user, if it's still
+   * pending.
+   *
+   * @param key the file key
+   * @param pending the pending version
+   */
+  protected void commitPendingVersion(String key, PendingVersion pending) {
+    VersionLock versionLock = lockVersion(key);
+    try {
+      if (!pendingVersions.remove(key, pending)) {
+        // already committed
+        return;
+      }
+      pending.cancel();
+      ConversationState contextState = ConversationState.getCurrent();
+      SessionProvider contextProvider = sessionProviders.getSessionProvider(null);
+      if (setUserConvoState(pending.getUserId())) {
+        SessionProvider userProvider = sessionProviders.getSessionProvider(null);
+        try {
+          Node node = nodeByUUID(pending.getFileId(), pending.getWorkspace());
+          if (node.isLocked()) {
+            FileLock lock = lockManager.getLock(node);
+            if (lock != null) {
+              node.getSession().addLockToken(lock.getLockToken());
+            }
           }
+          createVersion(node, pending.getUserId());
+          invalidateFileInfo(node);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Pending version checked in. FileId: " + pending.getFileId());
+          }
+        } catch (Exception e) {
+          LOG.error("Cannot check in pending version. FileId: " + pending.getFileId() + ", workspace: "
+              + pending.getWorkspace(), e);
+        } finally {
+          restoreConvoState(contextState, contextProvider);
+          userProvider.close();
         }
       } else {
-        throw new PermissionDeniedException("Cannnot update file. Permission denied");
+        LOG.error("Cannot check in pending version, user not found: " + pending.getUserId() + ". FileId: "
+            + pending.getFileId());
       }
-    } catch (RepositoryException e) {
-      LOG.error("Cannot save document content.", e);
-      throw new OfficeOnlineException("Cannot perform putFile operation. FileId: " + config.getFileId() + ", workspace: "
-          + config.getWorkspace());
+    } finally {
+      unlockVersion(key, versionLock);
     }
   }
 
+  /**
+   * Acquires the versioning lock of the file. Only saves and check-ins of the
+   * same file wait for each other, the lock is removed when no thread uses it.
+   *
+   * @param key the file key
+   * @return the acquired lock, release it with
+   *         {@link #unlockVersion(String, VersionLock)}
+   */
+  protected VersionLock lockVersion(String key) {
+    VersionLock versionLock = versionLocks.compute(key, (k, current) -> {
+      VersionLock used = current != null ? current : new VersionLock();
+      used.users++;
+      return used;
+    });
+    versionLock.lock();
+    return versionLock;
+  }
+
+  /**
+   * Releases the versioning lock of the file.
+   *
+   * @param key the file key
+   * @param versionLock the lock acquired by {@link #lockVersion(String)}
+   */
+  protected void unlockVersion(String key, VersionLock versionLock) {
+    versionLock.unlock();
+    versionLocks.computeIfPresent(key, (k, current) -> --current.users > 0 ? current : null);
+  }
+
   /**
    * Gets the versioning user.
    *
@@ -511,15 +946,26 @@ public class WOPIService extends AbstractOfficeOnlineService {
   }
 
   /**
-   * Checks if is editor version.
+   * Checks if is editor version. A version is saved by the editor if its
+   * {@link #MSOFFICE_EDITOR_VERSION_DATE} is the modification date of its
+   * content: a content modified after by other means has another date. Versions
+   * saved before have {@link #MSOFFICE_IS_EDITOR_VERSION} flag instead.
    *
    * @param frozen the frozen
    * @return the boolean
    * @throws RepositoryException the repository exception
    */
   protected Boolean isEditorVersion(Node frozen) throws RepositoryException {
-    if (frozen.hasProperty(WOPIService.MSOFFICE_IS_EDITOR_VERSION)) {
-      return frozen.getProperty(WOPIService.MSOFFICE_IS_EDITOR_VERSION).getBoolean();
+    if (frozen.hasProperty(WOPIService.MSOFFICE_IS_EDITOR_VERSION)
+        && frozen.getProperty(WOPIService.MSOFFICE_IS_EDITOR_VERSION).getBoolean()) {
+      return true;
+    }
+    if (frozen.hasProperty(MSOFFICE_EDITOR_VERSION_DATE) && frozen.hasNode(JCR_CONTENT)) {
+      Node content = frozen.getNode(JCR_CONTENT);
+      if (content.hasProperty(JCR_LAST_MODIFIED)) {
+        long editorDate = frozen.getProperty(MSOFFICE_EDITOR_VERSION_DATE).getDate().getTimeInMillis();
+        return editorDate == content.getProperty(JCR_LAST_MODIFIED).getDate().getTimeInMillis();
+      }
     }
     return false;
   }
@@ -573,24 +1019,141 @@ public class WOPIService extends AbstractOfficeOnlineService {
   }
 
   /**
-   * Check file info.
+   * Check file info. The response is joined from the fragment static for the
+   * deployment, the cached fragments of the user and the file, and the fragment
+   * specific to the request.
    *
    * @param config the config
-   * @return the map
+   * @return the check file info
    * @throws RepositoryException the repository exception
    * @throws FileNotFoundException the file not found exception
    */
-  public Map<String, Serializable> checkFileInfo(EditorConfig config) throws RepositoryException, FileNotFoundException {
+  public CheckFileInfo checkFileInfo(EditorConfig config) throws RepositoryException, FileNotFoundException {
 
-    Node node = nodeByUUID(config.getFileId(), config.getWorkspace());
-    Map<String, Serializable> map = new HashMap<>();
-    addRequiredProperties(map, node);
-    addHostCapabilitiesProperties(map);
-    addUserMetadataProperties(map);
-    addUserPermissionsProperties(map, node);
-    addFileURLProperties(map, node, config);
-    addBreadcrumbProperties(map, node, config);
-    return map;
+    DocumentContext document = getDocument(config);
+    String userId = ConversationState.getCurrent().getIdentity().getUserId();
+    CheckFileInfo.Fragment requestInfo = new CheckFileInfo.Fragment();
+    requestInfo.put(USER_ID, userId);
+    requestInfo.put(USER_INFO, userInfoCache.get(userId));
+    addUserPermissionsProperties(requestInfo, document);
+    addFileURLProperties(requestInfo, document, config);
+    addBreadcrumbProperties(requestInfo, document, config);
+    return new CheckFileInfo(staticFileInfo, getFileInfo(document), getUserFileInfo(userId), requestInfo.build());
+  }
+
+  /**
+   * Gets the document of the editor config. The document should be used for
+   * one request only.
+   *
+   * @param config the config
+   * @return the document context
+   * @throws FileNotFoundException the file not found exception
+   * @throws RepositoryException the repository exception
+   */
+  public DocumentContext getDocument(EditorConfig config) throws FileNotFoundException, RepositoryException {
+    return new DocumentContext(this, nodeByUUID(config.getFileId(), config.getWorkspace()));
+  }
+
+  /**
+   * Gets the CheckFileInfo fragment of the file. It's cached and reused while
+   * the file version, last modified date and title don't change. The title is
+   * checked as renaming doesn't change the others and other cluster nodes or
+   * ECMS don't invalidate the cache.
+   *
+   * @param document the document
+   * @return the file fragment
+   * @throws RepositoryException the repository exception
+   */
+  protected String getFileInfo(DocumentContext document) throws RepositoryException {
+    Node node = document.getNode();
+    String version = getVersion(node);
+    long lastModified = node.hasProperty(EXO_LAST_MODIFIED_DATE) ? node.getProperty(EXO_LAST_MODIFIED_DATE)
+                                                                       .getDate()
+                                                                       .getTimeInMillis()
+                                                                 : 0;
+    String title = document.getTitle();
+    String key = fileKey(node);
+    FileInfoFragment fileInfo = fileInfoCache.get(key);
+    if (fileInfo == null || !fileInfo.isValid(version, lastModified, title)) {
+      CheckFileInfo.Fragment fragment = new CheckFileInfo.Fragment();
+      addRequiredProperties(fragment, document, version);
+      fileInfo = new FileInfoFragment(version, lastModified, title, fragment.build());
+      fileInfoCache.put(key, fileInfo);
+    }
+    return fileInfo.getJSON();
+  }
+
+  /**
+   * Gets the CheckFileInfo fragment of the user. It's cached, thus the
+   * organization service isn't asked on each call.
+   *
+   * @param userId the user id
+   * @return the user fragment
+   */
+  protected String getUserFileInfo(String userId) {
+    String userInfo = userFileInfoCache.get(userId);
+    if (userInfo == null) {
+      CheckFileInfo.Fragment fragment = new CheckFileInfo.Fragment();
+      if (addUserMetadataProperties(fragment, userId)) {
+        userInfo = fragment.build();
+        userFileInfoCache.put(userId, userInfo);
+      } else {
+        // don't cache the fallback when the user cannot be found
+        return fragment.build();
+      }
+    }
+    return userInfo;
+  }
+
+  /**
+   * Removes cached CheckFileInfo fragment of the file.
+   *
+   * @param node the node
+   * @throws RepositoryException the repository exception
+   */
+  protected void invalidateFileInfo(Node node) throws RepositoryException {
+    fileInfoCache.remove(fileKey(node));
+  }
+
+  /**
+   * Invalidates the cached editor links of the file on this and other cluster
+   * nodes. Other nodes are called asynchronously, a failure is only logged.
+   *
+   * @param node the node
+   * @throws RepositoryException the repository exception
+   */
+  protected void invalidateEditorLinks(Node node) throws RepositoryException {
+    String fileKey = fileKey(node);
+    editorLinkCache.remove(fileKey);
+    if (invalidateLinksCommand != null) {
+      try {
+        rpcService.executeCommandOnAllNodes(invalidateLinksCommand, false, fileKey);
+      } catch (RPCException e) {
+        LOG.warn("Cannot remove cached editor links of {} on other cluster nodes: {}", fileKey, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Gets the key of the file in caches: its workspace and UUID.
+   *
+   * @param node the node
+   * @return the key
+   * @throws RepositoryException the repository exception
+   */
+  protected String fileKey(Node node) throws RepositoryException {
+    return fileKey(node.getSession().getWorkspace().getName(), node.getUUID());
+  }
+
+  /**
+   * Gets the key of the file in caches.
+   *
+   * @param workspace the workspace
+   * @param fileId the file id
+   * @return the key
+   */
+  protected String fileKey(String workspace, String fileId) {
+    return new StringBuilder(workspace).append(':').append(fileId).toString();
   }
 
   /**
@@ -619,23 +1182,22 @@ public class WOPIService extends AbstractOfficeOnlineService {
 
     String url = wopiUrl + contextPath;
     byte[] expectedProofBytes = ProofKeyHelper.getExpectedProofBytes(url, accessToken, timestamp);
-    // follow flow from https://wopi.readthedocs.io/en/latest/scenarios/proofkeys.html#verifying-the-proof-keys
-    boolean res = ProofKeyHelper.verifyProofKey(discoveryPlugin.getProofKey(), proofKeyHeader, expectedProofBytes);
-    boolean successWithOldKey = false;
-    if (!res && StringUtils.isNotBlank(oldProofKeyHeader)) {
-      res = ProofKeyHelper.verifyProofKey(discoveryPlugin.getProofKey(), oldProofKeyHeader, expectedProofBytes);
-      if (!res) {
-        res = ProofKeyHelper.verifyProofKey(discoveryPlugin.getOldProofKey(), proofKeyHeader, expectedProofBytes);
-        successWithOldKey = res;
-      }
-    }
+    ProofKeyVerifier.Result res = proofKeyVerifier.verify(expectedProofBytes, proofKeyHeader, oldProofKeyHeader);
 
     // Rerun discovery in case of success with old key or failure
-    if (!res || successWithOldKey) {
-      // TODO: should we run in in separate thread?
-      discoveryPlugin.loadDiscovery();
+    if (res != ProofKeyVerifier.Result.CURRENT_KEY) {
+      discoveryPlugin.requestRefresh();
     }
-    return res;
+    return res != ProofKeyVerifier.Result.FAILED;
+  }
+
+  /**
+   * Gets the proof key verifier.
+   *
+   * @return the proof key verifier
+   */
+  public ProofKeyVerifier getProofKeyVerifier() {
+    return proofKeyVerifier;
   }
 
   /**
@@ -647,6 +1209,8 @@ public class WOPIService extends AbstractOfficeOnlineService {
     Class<WOPIDiscoveryPlugin> pclass = WOPIDiscoveryPlugin.class;
     if (pclass.isAssignableFrom(plugin.getClass())) {
       discoveryPlugin = pclass.cast(plugin);
+      discoveryPlugin.addReloadListener(editorLinkCache::clearCache);
+      proofKeyVerifier = new ProofKeyVerifier(discoveryPlugin);
       LOG.info("Set WopiDiscoveryPlugin instance of " + plugin.getClass().getName());
     } else {
       throw new WopiDiscoveryNotFoundException("WopiDiscoveryPlugin is not an instance of " + pclass.getName());
@@ -750,13 +1314,14 @@ public class WOPIService extends AbstractOfficeOnlineService {
       throw new InvalidFileNameException("Requested title is not allowed due to using illegal JCR chars");
     }
 
-    Node node = nodeByUUID(config.getFileId(), config.getWorkspace());
+    DocumentContext document = getDocument(config);
+    Node node = document.getNode();
     if (trashService.isInTrash(node)) {
       throw new FileNotFoundException("File has been deleted. FileId: " + config.getFileId() + ", workspace: "
           + config.getWorkspace());
     }
 
-    if (!canUpdate(node) || !config.getPermissions().contains(Permissions.USER_CAN_RENAME)) {
+    if (!document.canUpdate() || !config.getPermissions().contains(Permissions.USER_CAN_RENAME)) {
       throw new PermissionDeniedException("Cannot rename document. Permission denied");
     }
     checkNodeLock(node, lockId);
@@ -786,7 +1351,7 @@ public class WOPIService extends AbstractOfficeOnlineService {
     // Get current file extension
     String extension = null;
     try {
-      extension = getFileExtension(node);
+      extension = document.getExtension();
     } catch (FileExtensionNotFoundException e) {
       LOG.warn("Cannot get file extension.", e);
     }
@@ -801,12 +1366,15 @@ public class WOPIService extends AbstractOfficeOnlineService {
     node.setProperty(EXO_TITLE, name);
     node.refresh(true);
     parentNode.getSession().save();
+    invalidateFileInfo(node);
+    invalidateEditorLinks(node);
     // Keep lock for new node path to be able to unlock the node after rename.
     try {
       LockUtil.keepLock(node.getLock());
     } catch (Exception e) {
       LOG.warn("Cannot keep lock for renamed node {}. {}", node.getPath(), e.getMessage());
     }
+    eventBus.publish(OfficeOnlineEvent.renamed(config, newTitle));
     // Return title without file extension
     return newTitle;
   }
@@ -819,15 +1387,7 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @throws RepositoryException the repository exception
    */
   protected boolean canUpdate(Node node) throws RepositoryException {
-    NodeImpl parent;
-    try {
-      parent = (NodeImpl) node.getParent();
-    } catch (AccessDeniedException e) {
-      LOG.warn("Cannot get access to the parent node {}", e.getMessage());
-      return false;
-    }
-    return parent.hasPermission(PermissionType.READ) && parent.hasPermission(PermissionType.ADD_NODE)
-        && parent.hasPermission(PermissionType.SET_PROPERTY);
+    return new DocumentContext(this, node).canUpdate();
   }
 
   /**
@@ -839,24 +1399,7 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @throws FileExtensionNotFoundException the file extension not found exception
    */
   protected String getFileExtension(Node node) throws RepositoryException, FileExtensionNotFoundException {
-    String title = node.getProperty(Utils.EXO_TITLE).getString();
-    if (title.contains(".")) {
-      return title.substring(title.lastIndexOf(".") + 1);
-    }
-
-    String mimeType;
-    if (node.isNodeType(Utils.NT_FILE)) {
-      mimeType = node.getNode(Utils.JCR_CONTENT).getProperty(Utils.JCR_MIMETYPE).getString();
-    } else {
-      mimeType = new MimeTypeResolver().getMimeType(node.getName());
-    }
-
-    String extension = documentTypePlugin.getFileExtensions().get(mimeType);
-    if (extension != null) {
-      return extension;
-    } else {
-      throw new FileExtensionNotFoundException("Cannot get file extension. FileId: " + node.getUUID() + ". Title: " + title);
-    }
+    return new DocumentContext(this, node).getExtension();
   }
 
   /**
@@ -907,6 +1450,21 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @throws EditorLinkNotFoundException the editor link not found exception
    */
   public String getEditorLink(Node node, String baseUrl, String action) throws RepositoryException, EditorLinkNotFoundException {
+    return getEditorLink(new DocumentContext(this, node), baseUrl, action);
+  }
+
+  /**
+   * Gets the editor link.
+   *
+   * @param document the document
+   * @param baseUrl the base url
+   * @param action the action
+   * @return the editor link
+   * @throws RepositoryException the repository exception
+   * @throws EditorLinkNotFoundException the editor link not found exception
+   */
+  protected String getEditorLink(DocumentContext document, String baseUrl, String action) throws RepositoryException,
+                                                                                           EditorLinkNotFoundException {
     String portalName;
     try {
       portalName = WCMCoreUtils.getCurrentPortalName();
@@ -917,24 +1475,55 @@ public class WOPIService extends AbstractOfficeOnlineService {
     if (wopiAvailabilityChecker != null && !wopiAvailabilityChecker.isWOPIAvailable()) {
       throw new EditorLinkNotFoundException("Editor link not found - WOPI is not available");
     }
+    return getEditorLink(document, baseUrl, portalName, action);
+  }
 
-    if (isDocumentSupported(node)) {
-      StringBuilder link = new StringBuilder(baseUrl).append('/')
-                                                     .append(portalName)
-                                                     .append("/mseditor?fileId=")
-                                                     .append(node.getUUID());
-
-      if (action.equals(VIEW_ACTION)) {
-        link.append(VIEW_PARAM);
-      } else if (action.equals(EDIT_ACTION)) {
-        link.append(EDIT_PARAM);
-      } else if (action.equals(EDITNEW_ACTION)) {
-        link.append(EDITNEW_PARAM);
-      }
-      return link.toString();
-    } else {
+  /**
+   * Gets the editor link in the portal. WOPI availability is not checked.
+   *
+   * @param document the document
+   * @param baseUrl the base url
+   * @param portalName the portal name
+   * @param action the action
+   * @return the editor link
+   * @throws RepositoryException the repository exception
+   * @throws EditorLinkNotFoundException the editor link not found exception
+   */
+  protected String getEditorLink(DocumentContext document, String baseUrl, String portalName, String action) throws RepositoryException,
+                                                                                                                    EditorLinkNotFoundException {
+    // support is checked before the cache: the document may be renamed on another node
+    if (!document.isSupported()) {
       throw new EditorLinkNotFoundException("Editor link not found - document is not supported");
     }
+    String fileKey = fileKey(document.getWorkspace(), document.getFileId());
+    String linkKey = new StringBuilder(action).append(':').append(portalName).append(':').append(baseUrl).toString();
+    Map<String, String> links = editorLinkCache.get(fileKey);
+    if (links != null) {
+      String link = links.get(linkKey);
+      if (link != null) {
+        return link;
+      }
+    }
+    StringBuilder link = new StringBuilder(baseUrl).append('/')
+                                                   .append(portalName)
+                                                   .append("/mseditor?fileId=")
+                                                   .append(document.getFileId());
+
+    if (action.equals(VIEW_ACTION)) {
+      link.append(VIEW_PARAM);
+    } else if (action.equals(EDIT_ACTION)) {
+      link.append(EDIT_PARAM);
+    } else if (action.equals(EDITNEW_ACTION)) {
+      link.append(EDITNEW_PARAM);
+    }
+    if (links == null) {
+      // the links are added to the cached map, a concurrently created one may be lost
+      links = new ConcurrentHashMap<>();
+      editorLinkCache.put(fileKey, links);
+    }
+    String editorLink = link.toString();
+    links.put(linkKey, editorLink);
+    return editorLink;
   }
 
   /**
@@ -945,19 +1534,122 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @throws RepositoryException the repository exception
    */
   public boolean isDocumentSupported(Node node) throws RepositoryException {
-    if (node != null) {
-      if (node.getName().endsWith(WOPITEST) || node.getName().endsWith(WOPITESTX)) {
-        return true;
+    return node != null && new DocumentContext(this, node).isSupported();
+  }
+
+  /**
+   * Gets the editor support of the documents for the current user. It's
+   * evaluated in one pass: a session is open once per workspace, the portal
+   * name and WOPI availability are read once, and each node is read once for
+   * its type, edit and view checks. Documents not found or not accessible are
+   * not supported.
+   *
+   * @param files the file ids by workspace, <code>null</code> workspace means
+   *          the default one
+   * @param baseUrl the base url of editor links, <code>null</code> if links
+   *          aren't needed
+   * @return the documents support in order of the files
+   */
+  public List<DocumentSupport> getDocumentsSupport(Map<String, List<String>> files, String baseUrl) {
+    String portalName = null;
+    if (baseUrl != null) {
+      try {
+        portalName = WCMCoreUtils.getCurrentPortalName();
+      } catch (Exception e) {
+        LOG.error("Cannot get current portal owner {}", e.getMessage());
       }
-      String mimeType;
-      if (node.isNodeType(Utils.NT_FILE)) {
-        mimeType = node.getNode(Utils.JCR_CONTENT).getProperty(Utils.JCR_MIMETYPE).getString();
-      } else {
-        mimeType = new MimeTypeResolver().getMimeType(node.getName());
+    }
+    return getDocumentsSupport(files, baseUrl, portalName);
+  }
+
+  /**
+   * Gets the editor support of the documents for the current user with editor
+   * links in given portal. It's for requests outside of a portal page, e.g.
+   * REST requests.
+   *
+   * @param files the file ids by workspace, <code>null</code> workspace means
+   *          the default one
+   * @param baseUrl the base url of editor links
+   * @param portalName the portal name of editor links, <code>null</code> if
+   *          links aren't needed
+   * @return the documents support in order of the files
+   */
+  public List<DocumentSupport> getDocumentsSupport(Map<String, List<String>> files, String baseUrl, String portalName) {
+    // links will not be provided if WOPI is not available
+    boolean available = portalName != null
+        && (wopiAvailabilityChecker == null || wopiAvailabilityChecker.isWOPIAvailable());
+    List<DocumentSupport> documents = new ArrayList<>();
+    for (Entry<String, List<String>> entry : files.entrySet()) {
+      String workspace = entry.getKey();
+      Session session;
+      try {
+        session = getUserSession(workspace);
+      } catch (RepositoryException e) {
+        LOG.error("Cannot open workspace {} to check documents support: {}", workspace, e.getMessage());
+        session = null;
+      }
+      for (String fileId : entry.getValue()) {
+        if (session != null) {
+          documents.add(getDocumentSupport(session, fileId, workspace, baseUrl, available ? portalName : null));
+        } else {
+          documents.add(new DocumentSupport(fileId, workspace));
+        }
       }
-      return documentTypePlugin.fileExtensions.containsKey(mimeType);
     }
-    return false;
+    return documents;
+  }
+
+  /**
+   * Gets the editor support of the document. A symlink is resolved to its
+   * target.
+   *
+   * @param session the user session
+   * @param fileId the file id
+   * @param workspace the workspace
+   * @param baseUrl the base url
+   * @param portalName the portal name or <code>null</code> if the link should
+   *          not be provided
+   * @return the document support
+   */
+  protected DocumentSupport getDocumentSupport(Session session,
+                                               String fileId,
+                                               String workspace,
+                                               String baseUrl,
+                                               String portalName) {
+    try {
+      Node node = session.getNodeByUUID(fileId);
+      if (node.isNodeType(NodetypeConstant.EXO_SYMLINK)) {
+        Item target = nodeFinder.getItem(session, node.getPath(), true);
+        if (target == null || !target.isNode()) {
+          return new DocumentSupport(fileId, workspace);
+        }
+        node = (Node) target;
+      }
+      DocumentContext document = new DocumentContext(this, node);
+      if (!document.isSupported()) {
+        return new DocumentSupport(fileId, workspace);
+      }
+      boolean editable = document.canEdit();
+      boolean viewable = document.canView();
+      String link = null;
+      if (portalName != null && (editable || viewable)) {
+        try {
+          link = getEditorLink(document, baseUrl, portalName, editable ? EDIT_ACTION : VIEW_ACTION);
+        } catch (EditorLinkNotFoundException e) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Cannot get editor link: {}", e.getMessage());
+          }
+        }
+      }
+      return new DocumentSupport(fileId, workspace, document.getFileId(), true, editable, viewable, link);
+    } catch (ItemNotFoundException e) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Cannot find node by UUID: {}, workspace: {}. Error: {}", fileId, workspace, e.getMessage());
+      }
+    } catch (RepositoryException e) {
+      LOG.error("Cannot check if file is supported. FileId: {}, workspace: {}", fileId, workspace, e);
+    }
+    return new DocumentSupport(fileId, workspace);
   }
 
   /**
@@ -1035,91 +1727,116 @@ public class WOPIService extends AbstractOfficeOnlineService {
   @Override
   public void stop() {
     discoveryPlugin.stop();
+    if (putFileExecutor != null) {
+      // let already accepted content be saved
+      putFileExecutor.shutdown(PUTFILE_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    if (versionExecutor != null) {
+      versionExecutor.shutdownNow();
+      for (Entry<String, PendingVersion> pending : pendingVersions.entrySet()) {
+        commitPendingVersion(pending.getKey(), pending.getValue());
+      }
+    }
     if (wopiAvailabilityChecker != null) {
       wopiAvailabilityChecker.stop();
     }
+    if (lockManager != null) {
+      lockManager.stop();
+    }
+    eventBus.stop();
   }
 
   /**
    * Adds the required properties.
    *
-   * @param map the map
-   * @param node the node
+   * @param fileInfo the file info
+   * @param document the document
+   * @param version the version
    * @throws RepositoryException the repository exception
    */
-  protected void addRequiredProperties(Map<String, Serializable> map, Node node) throws RepositoryException {
-    String fileName = node.getProperty(EXO_TITLE).getString();
+  protected void addRequiredProperties(CheckFileInfo.Fragment fileInfo,
+                                       DocumentContext document,
+                                       String version) throws RepositoryException {
+    Node node = document.getNode();
+    String fileName = document.getTitle();
     try {
       fileName = URLDecoder.decode(fileName, StandardCharsets.UTF_8.name());
     } catch (UnsupportedEncodingException e) {
       LOG.warn("Cannot decode filename. {}", e.getMessage());
     }
-    map.put(BASE_FILE_NAME, fileName);
-    map.put(OWNER_ID, node.getProperty(EXO_OWNER).getString());
-    map.put(SIZE, getSize(node));
-    map.put(USER_ID, ConversationState.getCurrent().getIdentity().getUserId());
+    fileInfo.put(BASE_FILE_NAME, fileName);
+    fileInfo.put(OWNER_ID, node.getProperty(EXO_OWNER).getString());
+    fileInfo.put(SIZE, getSize(node));
+    fileInfo.put(VERSION, version);
+  }
+
+  /**
+   * Gets the item version of the file, see {@link #itemVersion(Node)}. The node
+   * is made versionable if it isn't yet.
+   *
+   * @param node the node
+   * @return the item version
+   * @throws RepositoryException the repository exception
+   */
+  protected String getVersion(Node node) throws RepositoryException {
     if (!node.isNodeType(MIX_VERSIONABLE)) {
       // Use system session to add make the node versionable
       Session systemSession = jcrService.getCurrentRepository().getSystemSession(node.getSession().getWorkspace().getName());
       NodeImpl systemNode = (NodeImpl) systemSession.getNodeByUUID(node.getUUID());
       systemNode.addMixin(MIX_VERSIONABLE);
       systemNode.save();
-      map.put(VERSION, systemNode.getBaseVersion().getName());
-    } else {
-      map.put(VERSION, node.getBaseVersion().getName());
+      return itemVersion(systemNode);
     }
-
+    return itemVersion(node);
   }
 
   /**
    * Adds the host capabilities properties.
    *
-   * @param map the map
+   * @param fileInfo the file info
    */
-  protected void addHostCapabilitiesProperties(Map<String, Serializable> map) {
-    map.put(SUPPORTS_EXTENDED_LOCK_LENGTH, true);
-    map.put(SUPPORTS_GET_LOCK, true);
-    map.put(SUPPORTS_LOCKS, true);
-    map.put(SUPPORTS_RENAME, true);
-    map.put(SUPPORTS_UPDATE, true);
-    map.put(SUPPORTS_DELETE_FILE, true);
-    map.put(SUPPORTS_USER_INFO, true);
+  protected void addHostCapabilitiesProperties(CheckFileInfo.Fragment fileInfo) {
+    fileInfo.put(SUPPORTS_EXTENDED_LOCK_LENGTH, true);
+    fileInfo.put(SUPPORTS_GET_LOCK, true);
+    fileInfo.put(SUPPORTS_LOCKS, true);
+    fileInfo.put(SUPPORTS_RENAME, true);
+    fileInfo.put(SUPPORTS_UPDATE, true);
+    fileInfo.put(SUPPORTS_DELETE_FILE, true);
+    fileInfo.put(SUPPORTS_USER_INFO, true);
     // TODO: Introduce SHARE_URL_TYPES
-    // map.put(SUPPORTED_SHARE_URL_TYPES, (Serializable) Arrays.asList(SHARE_URL_READ_ONLY, SHARE_URL_READ_WRITE));
+    // fileInfo.put(SUPPORTED_SHARE_URL_TYPES, ...) with SHARE_URL_READ_ONLY, SHARE_URL_READ_WRITE
   }
 
   /**
    * Adds the user metadata properties.
    *
-   * @param map the map
+   * @param fileInfo the file info
+   * @param userId the user id
+   * @return true, if the user found
    */
-  protected void addUserMetadataProperties(Map<String, Serializable> map) {
-    String userId = ConversationState.getCurrent().getIdentity().getUserId();
+  protected boolean addUserMetadataProperties(CheckFileInfo.Fragment fileInfo, String userId) {
     User user = getUser(userId);
     String displayName = user != null ? user.getDisplayName() : userId;
-    map.put(IS_ANONYMOUS_USER, false);
-    map.put(LICENSE_CHECK_FOR_EDIT_IS_ENABLED, true);
-    map.put(USER_FRIENDLY_NAME, displayName);
-    String userInfo = userInfoCache.get(userId);
-    if (userInfo != null) {
-      map.put(USER_INFO, userInfo);
-    }
+    fileInfo.put(IS_ANONYMOUS_USER, false);
+    fileInfo.put(LICENSE_CHECK_FOR_EDIT_IS_ENABLED, true);
+    fileInfo.put(USER_FRIENDLY_NAME, displayName);
+    return user != null;
   }
 
   /**
    * Adds the user permissions properties.
    *
-   * @param map the map
-   * @param node the node
+   * @param fileInfo the file info
+   * @param document the document
    * @throws RepositoryException the repository exception
    */
-  protected void addUserPermissionsProperties(Map<String, Serializable> map, Node node) throws RepositoryException {
-    boolean canEdit = canEdit(node);
-    boolean canUpdate = canUpdate(node);
-    map.put(Permissions.READ_ONLY.toString(), !canEdit);
-    map.put(Permissions.USER_CAN_RENAME.toString(), canUpdate);
-    map.put(Permissions.USER_CAN_WRITE.toString(), canEdit);
-    map.put(Permissions.USER_CAN_NOT_WRITE_RELATIVE.toString(), !canUpdate);
+  protected void addUserPermissionsProperties(CheckFileInfo.Fragment fileInfo, DocumentContext document) throws RepositoryException {
+    boolean canEdit = document.canEdit();
+    boolean canUpdate = document.canUpdate();
+    fileInfo.put(Permissions.READ_ONLY.toString(), !canEdit);
+    fileInfo.put(Permissions.USER_CAN_RENAME.toString(), canUpdate);
+    fileInfo.put(Permissions.USER_CAN_WRITE.toString(), canEdit);
+    fileInfo.put(Permissions.USER_CAN_NOT_WRITE_RELATIVE.toString(), !canUpdate);
   }
 
   /**
@@ -1129,22 +1846,7 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @return true, if successful
    */
   public boolean canEdit(Node node) {
-    try {
-      if (node.isNodeType(NT_FILE) && isDocumentSupported(node) && PermissionUtil.canSetProperty(node)) {
-        String actionUrl = null;
-        // Check if WOPI has edit action for such file extension
-        try {
-          String extension = getFileExtension(node);
-          actionUrl = discoveryPlugin.getActionUrl(extension, EDIT_ACTION);
-        } catch (FileExtensionNotFoundException e) {
-          LOG.error("Cannot get file extension from node: " + node.getUUID());
-        }
-        return actionUrl != null;
-      }
-    } catch (RepositoryException e) {
-      LOG.error("Cannot check file edit permissions", e);
-    }
-    return false;
+    return new DocumentContext(this, node).canEdit();
   }
 
   /**
@@ -1154,64 +1856,47 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @return true, if successful
    */
   public boolean canView(Node node) {
-    try {
-      if (node.isNodeType(NT_FILE) && isDocumentSupported(node)) {
-        String actionUrl = null;
-        // Check if WOPI has edit action for such file extension
-        try {
-          String extension = getFileExtension(node);
-          actionUrl = discoveryPlugin.getActionUrl(extension, VIEW_ACTION);
-        } catch (FileExtensionNotFoundException e) {
-          LOG.error("Cannot get file extension from node: " + node.getUUID());
-        }
-        return actionUrl != null;
-      }
-    } catch (RepositoryException e) {
-      LOG.error("Cannot check file view permissions", e);
-    }
-    return false;
+    return new DocumentContext(this, node).canView();
   }
 
   /**
    * Adds the file URL properties.
    *
-   * @param map the map
-   * @param node the node
+   * @param fileInfo the file info
+   * @param document the document
    * @param config the config
    * @throws RepositoryException the repository exception
    */
-  protected void addFileURLProperties(Map<String, Serializable> map, Node node, EditorConfig config) throws RepositoryException {
-    Node symlink = null;
-    if (node.getPath().startsWith(usersPath)) {
-      // Shared document
-      if (!config.getUserId().equals(getUserId(node.getPath()))) {
-        symlink = getSymlink(node, config.getUserId());
-      }
-    }
+  protected void addFileURLProperties(CheckFileInfo.Fragment fileInfo,
+                                      DocumentContext document,
+                                      EditorConfig config) throws RepositoryException {
+    Node node = document.getNode();
+    // Shared document
+    Node symlink = document.getSymlink(config.getUserId());
 
     Node explorerNode = symlink != null ? symlink : node;
     StringBuilder explorerUrl = getExplorerURL(explorerNode, config.getBaseUrl());
     if (explorerUrl != null) {
-      map.put(CLOSE_URL, explorerUrl.toString());
-      map.put(FILE_VERSION_URL, explorerUrl.append("&versions=true").toString());
+      fileInfo.put(CLOSE_URL, explorerUrl.toString());
+      fileInfo.put(FILE_VERSION_URL, explorerUrl.append("&versions=true").toString());
     }
     String platformRestURL = new StringBuilder(config.getBaseUrl()).append('/')
                                                                    .append(PortalContainer.getCurrentRestContextName())
                                                                    .toString();
 
     String downloadURL = new StringBuilder(platformRestURL).append("/officeonline/editor/content/")
-                                                           .append(node.getUUID())
+                                                           .append(document.getFileId())
                                                            .append("?access_token=")
                                                            .append(config.getAccessToken().getToken())
                                                            .toString();
-    map.put(DOWNLOAD_URL, downloadURL);
+    fileInfo.put(DOWNLOAD_URL, downloadURL);
     try {
-      map.put(HOST_EDIT_URL, getEditorLink(node, config.getBaseUrl(), EDIT_ACTION));
-      map.put(HOST_VIEW_URL, getEditorLink(node, config.getBaseUrl(), VIEW_ACTION));
+      fileInfo.put(HOST_EDIT_URL, getEditorLink(document, config.getBaseUrl(), EDIT_ACTION));
+      fileInfo.put(HOST_VIEW_URL, getEditorLink(document, config.getBaseUrl(), VIEW_ACTION));
     } catch (EditorLinkNotFoundException e) {
       LOG.error("Cannot get editor link", e);
     }
-    map.put(FILE_URL, downloadURL);
+    fileInfo.put(FILE_URL, downloadURL);
 
   }
 
@@ -1228,41 +1913,39 @@ public class WOPIService extends AbstractOfficeOnlineService {
     return uri != null ? new StringBuilder(uri.toString()) : null;
   }
 
+  /**
+   * Adds the breadcrumb properties same for all requests.
+   *
+   * @param fileInfo the file info
+   */
+  protected void addStaticBreadcrumbProperties(CheckFileInfo.Fragment fileInfo) {
+    fileInfo.put(BREADCRUMB_BRAND_NAME, brandName);
+    fileInfo.put(FILE_VERSION_POST_MESSAGE, true);
+    fileInfo.put(EDIT_NOTIFICATION_POST_MESSAGE, true);
+  }
+
   /**
    * Adds the breadcrumb properties.
    *
-   * @param map the map
-   * @param node the node
+   * @param fileInfo the file info
+   * @param document the document
    * @param config the config
    */
-  protected void addBreadcrumbProperties(Map<String, Serializable> map, Node node, EditorConfig config) {
-    map.put(BREADCRUMB_BRAND_NAME, brandName);
-    map.put(BREADCRUMB_BRAND_URL, config.getBaseUrl());
-    map.put(POST_MESSAGE_ORIGIN, config.getBaseUrl());
-    map.put(FILE_VERSION_POST_MESSAGE, true);
-    map.put(EDIT_NOTIFICATION_POST_MESSAGE, true);
+  protected void addBreadcrumbProperties(CheckFileInfo.Fragment fileInfo, DocumentContext document, EditorConfig config) {
+    fileInfo.put(BREADCRUMB_BRAND_URL, config.getBaseUrl());
+    fileInfo.put(POST_MESSAGE_ORIGIN, config.getBaseUrl());
     try {
-      Node parent = null;
-      if (node.getPath().startsWith(usersPath)) {
-        // Shared document
-        if (!config.getUserId().equals(getUserId(node.getPath()))) {
-          Node symlink = getSymlink(node, config.getUserId());
-          if (symlink != null) {
-            parent = symlink.getParent();
-          }
-        }
-      }
-      if (parent == null) {
-        parent = node.getParent();
-      }
+      // Shared document
+      Node symlink = document.getSymlink(config.getUserId());
+      Node parent = symlink != null ? symlink.getParent() : document.getNode().getParent();
 
       if (parent.hasProperty(EXO_TITLE)) {
-        map.put(BREADCRUMB_FOLDER_NAME, parent.getProperty(EXO_TITLE).getString());
+        fileInfo.put(BREADCRUMB_FOLDER_NAME, parent.getProperty(EXO_TITLE).getString());
       } else if (parent.hasProperty(EXO_NAME)) {
-        map.put(BREADCRUMB_FOLDER_NAME, parent.getProperty(EXO_NAME).getString());
+        fileInfo.put(BREADCRUMB_FOLDER_NAME, parent.getProperty(EXO_NAME).getString());
       }
       String url = explorerUri(config.getBaseUrl(), explorerLink(parent.getPath())).toString();
-      map.put(BREADCRUMB_FOLDER_URL, url);
+      fileInfo.put(BREADCRUMB_FOLDER_URL, url);
     } catch (RepositoryException e) {
       LOG.error("Couldn't add breadcrump properties:", e);
     }
@@ -1287,7 +1970,8 @@ public class WOPIService extends AbstractOfficeOnlineService {
   }
 
   /**
-   * Lock.
+   * Lock. Listeners are notified only when the file gets locked, not when its
+   * lock is refreshed.
    *
    * @param config the config
    * @param lockId the lock id
@@ -1297,8 +1981,10 @@ public class WOPIService extends AbstractOfficeOnlineService {
    */
   public void lock(EditorConfig config, String lockId) throws LockMismatchException, RepositoryException, FileNotFoundException {
     Node node = nodeByUUID(config.getFileId(), config.getWorkspace());
-    lockManager.lock(node, lockId);
-    node.save();
+    if (lockManager.lock(node, lockId)) {
+      // a refresh of the same lock isn't a new lock
+      eventBus.publish(OfficeOnlineEvent.locked(config));
+    }
   }
 
   /**
@@ -1330,8 +2016,7 @@ public class WOPIService extends AbstractOfficeOnlineService {
                                                                                FileNotFoundException {
 
     Node node = nodeByUUID(config.getFileId(), config.getWorkspace());
-    lockManager.unlock(node, oldLock, config.getWorkspace());
-    lockManager.lock(node, providedLock);
+    lockManager.relock(node, oldLock, providedLock);
   }
 
   /**
@@ -1347,7 +2032,17 @@ public class WOPIService extends AbstractOfficeOnlineService {
                      String providedLock) throws LockMismatchException, RepositoryException, FileNotFoundException {
 
     Node node = nodeByUUID(config.getFileId(), config.getWorkspace());
+    FileLock lock = lockManager.getLock(node);
+    if (lock == null) {
+      throw new LockMismatchException("File isn't locked", "");
+    }
+    if (!providedLock.equals(lock.getLockId())) {
+      throw new LockMismatchException("Provided lockId doesn't match lock on the file", lock.getLockId());
+    }
+    // check in while the lock is still there
+    commitPendingVersion(config.getFileId(), config.getWorkspace());
     lockManager.unlock(node, providedLock, config.getWorkspace());
+    eventBus.publish(OfficeOnlineEvent.unlocked(config));
   }
 
   /**
@@ -1408,7 +2103,9 @@ public class WOPIService extends AbstractOfficeOnlineService {
     }
 
     Node parent = node.getParent();
-    return createFile(parent, filename, data);
+    String fileId = createFile(parent, filename, data);
+    eventBus.publish(OfficeOnlineEvent.created(config, fileId));
+    return fileId;
   }
 
   /**
@@ -1497,7 +2194,9 @@ public class WOPIService extends AbstractOfficeOnlineService {
       }
       return targetNode.getUUID();
     } else {
-      return createFile(parent, filename, data);
+      String fileId = createFile(parent, filename, data);
+      eventBus.publish(OfficeOnlineEvent.created(config, fileId));
+      return fileId;
     }
   }
 
@@ -1568,10 +2267,9 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @throws FileExtensionNotFoundException the file extension not found exception
    */
   public String getMimeTypeByExtension(String extension) throws FileExtensionNotFoundException {
-    for (Entry<String, String> entry : documentTypePlugin.getFileExtensions().entrySet()) {
-      if (entry.getValue().equals(extension)) {
-        return entry.getKey();
-      }
+    String mimeType = documentTypePlugin.getMimeType(extension);
+    if (mimeType != null) {
+      return mimeType;
     }
     if (extension.equals(WOPITEST) || extension.equals(WOPITESTX)) {
       return "application/octet-stream";
@@ -1580,20 +2278,17 @@ public class WOPIService extends AbstractOfficeOnlineService {
   }
 
   /**
-   * Gets the file version.
+   * Gets the item version of the file, it changes on each content save, also
+   * within a version coalescing window.
    *
    * @param fileId the file id
    * @param workspace the workspace
-   * @return the file version
+   * @return the item version
    * @throws FileNotFoundException the file not found exception
    * @throws RepositoryException the repository exception
    */
   public String getFileVersion(String fileId, String workspace) throws FileNotFoundException, RepositoryException {
-    Node node = nodeByUUID(fileId, workspace);
-    if (node.isNodeType(MIX_VERSIONABLE)) {
-      return node.getBaseVersion().getName();
-    }
-    return null;
+    return itemVersion(nodeByUUID(fileId, workspace));
   }
 
   /**
@@ -1625,7 +2320,10 @@ public class WOPIService extends AbstractOfficeOnlineService {
     checkNodeLock(node, lockId);
     try {
       if (!trashService.isInTrash(node)) {
+        invalidateFileInfo(node);
+        invalidateEditorLinks(node);
         trashService.moveToTrash(node, sessionProviders.getSessionProvider(null));
+        eventBus.publish(OfficeOnlineEvent.deleted(config));
       }
     } catch (Exception e) {
       LOG.error("Cannot move node to trash.", e);
@@ -1760,12 +2458,23 @@ public class WOPIService extends AbstractOfficeOnlineService {
   }
 
   /**
-   * Adds the listener.
+   * Adds the listener with the configured queue size and policy.
    *
    * @param listener the listener
    */
   public void addListener(OfficeOnlineListener listener) {
-    this.listeners.add(listener);
+    addListener(listener, listenerQueueSize, listenerPolicy);
+  }
+
+  /**
+   * Adds the listener.
+   *
+   * @param listener the listener
+   * @param queueSize the queue size of the listener
+   * @param policy the policy when the queue is full
+   */
+  public void addListener(OfficeOnlineListener listener, int queueSize, OfficeOnlineEventBus.Policy policy) {
+    eventBus.subscribe(listener, queueSize, policy);
   }
 
   /**
@@ -1774,7 +2483,16 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @param listener the listener
    */
   public void removeListener(OfficeOnlineListener listener) {
-    this.listeners.remove(listener);
+    eventBus.unsubscribe(listener);
+  }
+
+  /**
+   * Gets the listeners with their delivery metrics.
+   *
+   * @return the listeners
+   */
+  public List<OfficeOnlineEventBus.Subscriber> getListeners() {
+    return eventBus.getSubscribers();
   }
 
   /**
@@ -1783,11 +2501,148 @@ public class WOPIService extends AbstractOfficeOnlineService {
    * @param config the config
    */
   public void onSaved(EditorConfig config) {
-    for (OfficeOnlineListener l : listeners) {
-      try {
-        l.onSaved(config);
-      } catch (Throwable t) {
-        LOG.warn("Saving listener error", t);
+    eventBus.publish(OfficeOnlineEvent.saved(config));
+  }
+
+  /**
+   * CheckFileInfo fragment of a file with the file state it was built for.
+   */
+  protected static class FileInfoFragment {
+
+    /** The version. */
+    private final String version;
+
+    /** The last modified time. */
+    private final long   lastModified;
+
+    /** The title. */
+    private final String title;
+
+    /** The JSON. */
+    private final String json;
+
+    /**
+     * Instantiates a new file info fragment.
+     *
+     * @param version the version
+     * @param lastModified the last modified time
+     * @param title the title
+     * @param json the JSON
+     */
+    protected FileInfoFragment(String version, long lastModified, String title, String json) {
+      this.version = version;
+      this.lastModified = lastModified;
+      this.title = title;
+      this.json = json;
+    }
+
+    /**
+     * Gets the JSON.
+     *
+     * @return the JSON
+     */
+    protected String getJSON() {
+      return json;
+    }
+
+    /**
+     * Checks if the fragment was built for given file state.
+     *
+     * @param currentVersion the current version
+     * @param currentLastModified the current last modified time
+     * @param currentTitle the current title
+     * @return true, if is valid
+     */
+    protected boolean isValid(String currentVersion, long currentLastModified, String currentTitle) {
+      return lastModified == currentLastModified && version.equals(currentVersion) && title.equals(currentTitle);
+    }
+  }
+
+  /**
+   * Versioning lock of a file with the count of threads using it, the count is
+   * changed only in {@link ConcurrentHashMap#compute} of the file key.
+   */
+  protected static class VersionLock extends ReentrantLock {
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The threads holding or waiting for the lock. */
+    private int               users;
+  }
+
+  /**
+   * Version saved by the editor and not checked in yet.
+   */
+  protected static class PendingVersion {
+
+    /** The workspace. */
+    private final String       workspace;
+
+    /** The file id. */
+    private final String       fileId;
+
+    /** The user id. */
+    private final String       userId;
+
+    /** The scheduled check in. */
+    private ScheduledFuture<?> future;
+
+    /**
+     * Instantiates a new pending version.
+     *
+     * @param workspace the workspace
+     * @param fileId the file id
+     * @param userId the user id
+     */
+    protected PendingVersion(String workspace, String fileId, String userId) {
+      this.workspace = workspace;
+      this.fileId = fileId;
+      this.userId = userId;
+    }
+
+    /**
+     * Gets the workspace.
+     *
+     * @return the workspace
+     */
+    protected String getWorkspace() {
+      return workspace;
+    }
+
+    /**
+     * Gets the file id.
+     *
+     * @return the file id
+     */
+    protected String getFileId() {
+      return fileId;
+    }
+
+    /**
+     * Gets the user id.
+     *
+     * @return the user id
+     */
+    protected String getUserId() {
+      return userId;
+    }
+
+    /**
+     * Sets the scheduled check in.
+     *
+     * @param future the future
+     */
+    protected synchronized void setFuture(ScheduledFuture<?> future) {
+      this.future = future;
+    }
+
+    /**
+     * Cancels the scheduled check in.
+     */
+    protected synchronized void cancel() {
+      if (future != null) {
+        future.cancel(false);
       }
     }
   }
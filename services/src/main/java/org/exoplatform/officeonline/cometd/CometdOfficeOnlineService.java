@@ -19,6 +19,10 @@
 package org.exoplatform.officeonline.cometd;
 
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
@@ -38,6 +42,8 @@ import org.mortbay.cometd.continuation.EXoContinuationBayeux;
 import org.picocontainer.Startable;
 
 import org.exoplatform.commons.utils.PropertyManager;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.PropertiesParam;
 import org.exoplatform.officeonline.EditorConfig;
 import org.exoplatform.officeonline.OfficeOnlineListener;
 import org.exoplatform.officeonline.WOPIService;
@@ -45,41 +51,82 @@ import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 
 /**
- * The CometdOfficeOnlineService.
+ * The CometdOfficeOnlineService. Saved events are coalesced per file during
+ * a short window and published by a dedicated thread: the window's last user
+ * and the number of saves go in one message.
  */
 public class CometdOfficeOnlineService implements Startable {
 
   /** The Constant LOG. */
-  private static final Log              LOG                  = ExoLogger.getLogger(CometdOfficeOnlineService.class);
+  private static final Log                              LOG                       = ExoLogger.getLogger(CometdOfficeOnlineService.class);
 
   /** The channel name. */
-  public static final String            CHANNEL_NAME         = "/eXo/Application/OfficeOnline/editor/";
+  public static final String                            CHANNEL_NAME              = "/eXo/Application/OfficeOnline/editor/";
 
   /** The channel name. */
-  public static final String            CHANNEL_NAME_PARAMS  = CHANNEL_NAME + "{fileId}";
+  public static final String                            CHANNEL_NAME_PARAMS       = CHANNEL_NAME + "{fileId}";
 
   /** The document saved event. */
-  public static final String            DOCUMENT_SAVED_EVENT = "DOCUMENT_SAVED";
+  public static final String                            DOCUMENT_SAVED_EVENT      = "DOCUMENT_SAVED";
+
+  /** The Constant SAVED_EVENT_CONFIGURATION. */
+  protected static final String                         SAVED_EVENT_CONFIGURATION = "saved-event-configuration";
+
+  /** The Constant COALESCING_WINDOW. */
+  protected static final String                         COALESCING_WINDOW         = "coalescing-window";
+
+  /** The Constant DEFAULT_COALESCING_WINDOW. */
+  protected static final long                           DEFAULT_COALESCING_WINDOW = 1000;
 
   /** The WOPIService service. */
-  protected final WOPIService           wopiService;
+  protected final WOPIService                           wopiService;
 
   /** The exo bayeux. */
-  protected final EXoContinuationBayeux exoBayeux;
+  protected final EXoContinuationBayeux                 exoBayeux;
 
   /** The service. */
-  protected final CometdService         service;
+  protected final CometdService                         service;
+
+  /** The saved events waiting for publishing, by file id. */
+  protected final ConcurrentHashMap<String, SavedEvent> savedEvents               = new ConcurrentHashMap<>();
+
+  /** The coalescing window in milliseconds, 0 to publish at once. */
+  protected final long                                  coalescingWindow;
+
+  /** The publisher, <code>null</code> if events published at once. */
+  protected final ScheduledExecutorService              publisher;
 
   /**
    * Instantiates the CometdOnlyofficeService.
    *
    * @param exoBayeux the exoBayeux
    * @param wopiService the wopi service
+   * @param initParams the init params
    */
-  public CometdOfficeOnlineService(EXoContinuationBayeux exoBayeux, WOPIService wopiService) {
+  public CometdOfficeOnlineService(EXoContinuationBayeux exoBayeux, WOPIService wopiService, InitParams initParams) {
     this.exoBayeux = exoBayeux;
     this.wopiService = wopiService;
     this.service = new CometdService();
+    PropertiesParam param = initParams != null ? initParams.getPropertiesParam(SAVED_EVENT_CONFIGURATION) : null;
+    long window = DEFAULT_COALESCING_WINDOW;
+    String value = param != null ? param.getProperty(COALESCING_WINDOW) : null;
+    if (value != null && !value.trim().isEmpty()) {
+      try {
+        window = Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        LOG.warn("Wrong {} value: {}, using {}", COALESCING_WINDOW, value, window);
+      }
+    }
+    this.coalescingWindow = Math.max(0, window);
+    if (coalescingWindow > 0) {
+      this.publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "officeonline-cometd");
+        thread.setDaemon(true);
+        return thread;
+      });
+    } else {
+      this.publisher = null;
+    }
   }
 
   /**
@@ -87,6 +134,9 @@ public class CometdOfficeOnlineService implements Startable {
    */
   @Override
   public void start() {
+    if (publisher != null) {
+      publisher.scheduleWithFixedDelay(this::publishSavedEvents, coalescingWindow, coalescingWindow, TimeUnit.MILLISECONDS);
+    }
     // instantiate processor after the eXo container start, to let
     // start-dependent logic worked before us
     final AtomicReference<ServerAnnotationProcessor> processor = new AtomicReference<>();
@@ -172,7 +222,11 @@ public class CometdOfficeOnlineService implements Startable {
 
         @Override
         public void onSaved(EditorConfig config) {
-          publishSavedEvent(config.getFileId(), config.getUserId());
+          if (publisher != null) {
+            savedEvents.merge(config.getFileId(), new SavedEvent(config.getUserId()), SavedEvent::merge);
+          } else {
+            publishSavedEvent(config.getFileId(), config.getUserId(), 1);
+          }
         }
 
       });
@@ -182,9 +236,10 @@ public class CometdOfficeOnlineService implements Startable {
      * Publish saved event.
      *
      * @param fileId the file id
-     * @param userId the user id
+     * @param userId the user id of the last save
+     * @param count the number of saves
      */
-    protected void publishSavedEvent(String fileId, String userId) {
+    protected void publishSavedEvent(String fileId, String userId, int count) {
       ServerChannel channel = bayeux.getChannel(CHANNEL_NAME + fileId);
       if (channel != null) {
         StringBuilder data = new StringBuilder();
@@ -197,7 +252,9 @@ public class CometdOfficeOnlineService implements Startable {
         data.append("\", ");
         data.append("\"userId\": \"");
         data.append(userId);
-        data.append("\"");
+        data.append("\", ");
+        data.append("\"count\": ");
+        data.append(count);
         data.append('}');
         channel.publish(localSession, data.toString());
       }
@@ -205,6 +262,22 @@ public class CometdOfficeOnlineService implements Startable {
 
   }
 
+  /**
+   * Publishes the saved events collected since the last run.
+   */
+  protected void publishSavedEvents() {
+    for (String fileId : savedEvents.keySet()) {
+      SavedEvent event = savedEvents.remove(fileId);
+      if (event != null) {
+        try {
+          service.publishSavedEvent(fileId, event.getUserId(), event.getCount());
+        } catch (Throwable t) {
+          LOG.warn("Cannot publish saved event of file {}", fileId, t);
+        }
+      }
+    }
+  }
+
   /**
    * Channels as string.
    *
@@ -220,7 +293,10 @@ public class CometdOfficeOnlineService implements Startable {
    */
   @Override
   public void stop() {
-    // Nothing
+    if (publisher != null) {
+      publisher.shutdownNow();
+      publishSavedEvents();
+    }
   }
 
   /**
@@ -242,4 +318,64 @@ public class CometdOfficeOnlineService implements Startable {
     return exoBayeux.getUserToken(userId);
   }
 
+  /**
+   * Saves of a file coalesced in one event.
+   */
+  protected static class SavedEvent {
+
+    /** The user id of the last save. */
+    private final String userId;
+
+    /** The number of saves. */
+    private final int    count;
+
+    /**
+     * Instantiates a new saved event of one save.
+     *
+     * @param userId the user id
+     */
+    protected SavedEvent(String userId) {
+      this(userId, 1);
+    }
+
+    /**
+     * Instantiates a new saved event.
+     *
+     * @param userId the user id
+     * @param count the count
+     */
+    protected SavedEvent(String userId, int count) {
+      this.userId = userId;
+      this.count = count;
+    }
+
+    /**
+     * Merges the later event into this one.
+     *
+     * @param later the later event
+     * @return the merged event
+     */
+    protected SavedEvent merge(SavedEvent later) {
+      return new SavedEvent(later.userId, count + later.count);
+    }
+
+    /**
+     * Gets the user id of the last save.
+     *
+     * @return the user id
+     */
+    protected String getUserId() {
+      return userId;
+    }
+
+    /**
+     * Gets the number of saves.
+     *
+     * @return the count
+     */
+    protected int getCount() {
+      return count;
+    }
+  }
+
 }
@@ -19,12 +19,15 @@ package org.exoplatform.officeonline.documents;
 import static org.exoplatform.officeonline.webui.OfficeOnlineContext.callModule;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.ResourceBundle;
-import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -32,6 +35,7 @@ import javax.jcr.RepositoryException;
 import org.exoplatform.container.PortalContainer;
 import org.exoplatform.container.component.BaseComponentPlugin;
 import org.exoplatform.ecm.webui.component.explorer.UIJCRExplorer;
+import org.exoplatform.officeonline.DocumentSupport;
 import org.exoplatform.officeonline.EditorConfig;
 import org.exoplatform.officeonline.OfficeOnlineDocumentUpdateActivityHandler;
 import org.exoplatform.officeonline.WOPIService;
@@ -103,9 +107,6 @@ public class OfficeOnlineDocumentEditorPlugin extends BaseComponentPlugin implem
   /** The cometd service. */
   protected final CometdOfficeOnlineService     cometdService;
 
-  /** The editor links. */
-  protected final Map<Node, String>             editorLinks                         = new ConcurrentHashMap<>();
-
   /** The update handler. */
   protected final DocumentUpdateActivityHandler updateHandler;
 
@@ -167,22 +168,53 @@ public class OfficeOnlineDocumentEditorPlugin extends BaseComponentPlugin implem
    */
   @Override
   public void initActivity(String uuid, String workspace, String activityId) throws Exception {
-    Node symlink = wopiService.nodeByUUID(uuid, workspace);
-    Node node = wopiService.getNode(symlink.getSession().getWorkspace().getName(), symlink.getPath());
-    if (node != null && wopiService.isDocumentSupported(node)) {
-      String link = null;
-      try {
-        link = new StringBuilder("'").append(getEditorLink(node, null)).append("'").toString();
-      } catch (EditorLinkNotFoundException e) {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Cannot get editor link: {}", e.getMessage());
-        }
-        link = "null";
+    initActivities(workspace, Collections.singletonMap(activityId, uuid));
+  }
+
+  /**
+   * Inits the activities of a stream page at once. The documents support is
+   * evaluated in one batch, see
+   * {@link WOPIService#getDocumentsSupport(Map, String)}.
+   *
+   * @param workspace the workspace
+   * @param activityFiles the file ids by activity id
+   * @throws OfficeOnlineException if the request URL cannot be found
+   */
+  public void initActivities(String workspace, Map<String, String> activityFiles) throws OfficeOnlineException {
+    Map<String, List<String>> files = Collections.singletonMap(workspace, new ArrayList<>(activityFiles.values()));
+    List<DocumentSupport> documents = getDocumentsSupport(files, null);
+    Map<String, DocumentSupport> supported = new HashMap<>();
+    for (DocumentSupport document : documents) {
+      if (document.isSupported()) {
+        supported.put(document.getFileId(), document);
+      }
+    }
+    for (Entry<String, String> activity : activityFiles.entrySet()) {
+      DocumentSupport document = supported.get(activity.getValue());
+      if (document != null) {
+        String link = document.getLink() != null ? "'" + document.getLink() + "'" : "null";
+        callModule("officeonline.initActivity('" + document.getDocumentId() + "', " + link + ", '" + activity.getKey()
+            + "');");
       }
-      callModule("officeonline.initActivity('" + node.getUUID() + "', " + link + ", '" + activityId + "');");
     }
   }
 
+  /**
+   * Gets the editor support of the documents in one batch, with editor links
+   * to edit or view. It's for activity streams and document lists showing
+   * many documents at once.
+   *
+   * @param files the file ids by workspace
+   * @param requestURI the request URI, if <code>null</code> the current portal
+   *          request will be used
+   * @return the documents support in order of the files
+   * @throws OfficeOnlineException if the request URL cannot be found
+   */
+  public List<DocumentSupport> getDocumentsSupport(Map<String, List<String>> files,
+                                                   URI requestURI) throws OfficeOnlineException {
+    return wopiService.getDocumentsSupport(files, getBaseUrl(requestURI));
+  }
+
   /**
    * Inits the preview.
    *
@@ -302,16 +334,9 @@ public class OfficeOnlineDocumentEditorPlugin extends BaseComponentPlugin implem
    */
   @Override
   public boolean isDocumentSupported(String fileId, String workspace) {
-    Node node;
-    try {
-      node = wopiService.nodeByUUID(fileId, workspace);
-      return wopiService.canEdit(node) || wopiService.canView(node);
-    } catch (FileNotFoundException e) {
-      LOG.error("Cannot check if file is suported, document not found. {}", e.getMessage());
-    } catch (RepositoryException e) {
-      LOG.error("Cannot check if file is suported", e);
-    }
-    return false;
+    Map<String, List<String>> files = Collections.singletonMap(workspace, Collections.singletonList(fileId));
+    DocumentSupport document = wopiService.getDocumentsSupport(files, null).get(0);
+    return document.isEditable() || document.isViewable();
   }
 
   /**
@@ -333,6 +358,8 @@ public class OfficeOnlineDocumentEditorPlugin extends BaseComponentPlugin implem
   @Override
   public void onLastEditorClosed(String fileId, String workspace) {
     try {
+      // the editing finished, don't wait for the coalescing window
+      wopiService.commitPendingVersion(fileId, workspace);
       Node node = wopiService.nodeByUUID(fileId, workspace);
       if (node.isLocked()) {
         EditorConfig config = new EditorConfig.Builder().fileId(fileId).workspace(workspace).build();
@@ -362,7 +389,7 @@ public class OfficeOnlineDocumentEditorPlugin extends BaseComponentPlugin implem
   }
 
   /**
-   * Returns editor link, adds it to the editorLinks cache.
+   * Returns editor link to edit or view, by the user permissions.
    *
    * @param node the node
    * @param requestURI the request URI
@@ -371,6 +398,28 @@ public class OfficeOnlineDocumentEditorPlugin extends BaseComponentPlugin implem
    * @throws OfficeOnlineException the office online exception
    */
   protected String getEditorLink(Node node, URI requestURI) throws RepositoryException, OfficeOnlineException {
+    String baseUrl = getBaseUrl(requestURI);
+    String link = null;
+    if (wopiService.canEdit(node)) {
+      link = wopiService.getEditorLink(node, baseUrl, WOPIService.EDIT_ACTION);
+    } else if (wopiService.canView(node)) {
+      link = wopiService.getEditorLink(node, baseUrl, WOPIService.VIEW_ACTION);
+    } else {
+      throw new EditorLinkNotFoundException("Editor link not found - permission denied");
+    }
+    return link;
+  }
+
+  /**
+   * Gets the platform base URL of the request.
+   *
+   * @param requestURI the request URI, if <code>null</code> the current portal
+   *          request will be used
+   * @return the base URL
+   * @throws OfficeOnlineException if request URI and portal request are
+   *           <code>null</code>
+   */
+  protected String getBaseUrl(URI requestURI) throws OfficeOnlineException {
     String scheme;
     String host;
     int port;
@@ -388,16 +437,7 @@ public class OfficeOnlineDocumentEditorPlugin extends BaseComponentPlugin implem
         throw new OfficeOnlineException("Cannot get editor link - request URI and PortalRequestContext are null");
       }
     }
-    String link = null;
-    if (wopiService.canEdit(node)) {
-      link = wopiService.getEditorLink(node, scheme, host, port, WOPIService.EDIT_ACTION);
-    } else if (wopiService.canView(node)) {
-      link = wopiService.getEditorLink(node, scheme, host, port, WOPIService.VIEW_ACTION);
-    } else {
-      throw new EditorLinkNotFoundException("Editor link not found - permission denied");
-    }
-    editorLinks.putIfAbsent(node, link);
-    return link;
+    return wopiService.getPlatformUrl(scheme, host, port);
   }
 
   /**
@@ -0,0 +1,38 @@
+package org.exoplatform.officeonline.exception;
+
+/**
+ * The Class FileTooLargeException.
+ */
+public class FileTooLargeException extends OfficeOnlineException {
+
+  /** The Constant serialVersionUID. */
+  private static final long serialVersionUID = -3920571483250957741L;
+
+  /**
+   * Instantiates a new file too large exception.
+   *
+   * @param message the message
+   */
+  public FileTooLargeException(String message) {
+    super(message);
+  }
+
+  /**
+   * Instantiates a new file too large exception.
+   *
+   * @param cause the cause
+   */
+  public FileTooLargeException(Throwable cause) {
+    super(cause);
+  }
+
+  /**
+   * Instantiates a new file too large exception.
+   *
+   * @param message the message
+   * @param cause the cause
+   */
+  public FileTooLargeException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline.rest;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Streams a document content (or a range of it) to the response. File based
+ * content is transferred using its channel, other content is copied through a
+ * buffer taken from a shared pool, thus GetFile doesn't allocate a new buffer
+ * per request.
+ */
+public class ContentStreamingOutput implements StreamingOutput {
+
+  /** The Constant BUFFER_SIZE. */
+  protected static final int                 BUFFER_SIZE = 64 * 1024;
+
+  /** The Constant POOL_SIZE. */
+  protected static final int                 POOL_SIZE   = 32;
+
+  /** The buffers pool. */
+  private static final BlockingQueue<byte[]> BUFFERS     = new ArrayBlockingQueue<>(POOL_SIZE);
+
+  /** The data. */
+  protected final InputStream                data;
+
+  /** The offset of first byte to write. */
+  protected final long                       offset;
+
+  /** The number of bytes to write. */
+  protected final long                       length;
+
+  /**
+   * Instantiates a new content streaming output.
+   *
+   * @param data the data
+   * @param offset the offset of first byte to write
+   * @param length the number of bytes to write, or <code>-1</code> to write
+   *          all the data starting from the offset
+   */
+  public ContentStreamingOutput(InputStream data, long offset, long length) {
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(OutputStream output) throws IOException {
+    try {
+      if (data instanceof FileInputStream) {
+        transfer(((FileInputStream) data).getChannel(), output);
+      } else {
+        copy(output);
+      }
+      output.flush();
+    } finally {
+      IOUtils.closeQuietly(data);
+    }
+  }
+
+  /**
+   * Transfers the content using file channel.
+   *
+   * @param channel the channel
+   * @param output the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected void transfer(FileChannel channel, OutputStream output) throws IOException {
+    WritableByteChannel target = Channels.newChannel(output);
+    long position = channel.position() + offset;
+    long remaining = length >= 0 ? length : channel.size() - position;
+    while (remaining > 0) {
+      long transferred = channel.transferTo(position, remaining, target);
+      if (transferred <= 0) {
+        // EOF reached
+        break;
+      }
+      position += transferred;
+      remaining -= transferred;
+    }
+  }
+
+  /**
+   * Copies the content using a pooled buffer.
+   *
+   * @param output the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  protected void copy(OutputStream output) throws IOException {
+    byte[] buffer = BUFFERS.poll();
+    if (buffer == null) {
+      buffer = new byte[BUFFER_SIZE];
+    }
+    try {
+      if (offset > 0) {
+        try {
+          IOUtils.skipFully(data, offset);
+        } catch (EOFException e) {
+          return;
+        }
+      }
+      long remaining = length >= 0 ? length : Long.MAX_VALUE;
+      while (remaining > 0) {
+        int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          break;
+        }
+        output.write(buffer, 0, read);
+        remaining -= read;
+      }
+    } finally {
+      BUFFERS.offer(buffer);
+    }
+  }
+}
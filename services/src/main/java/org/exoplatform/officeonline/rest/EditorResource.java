@@ -3,13 +3,17 @@
  */
 package org.exoplatform.officeonline.rest;
 
+import java.net.URI;
 import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.List;
 
 import javax.annotation.security.RolesAllowed;
-import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -20,9 +24,13 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 
+import org.exoplatform.officeonline.CheckFileInfo;
 import org.exoplatform.officeonline.DocumentContent;
+import org.exoplatform.officeonline.DocumentSupport;
 import org.exoplatform.officeonline.EditorConfig;
 import org.exoplatform.officeonline.EditorService;
+import org.exoplatform.officeonline.OfficeOnlineEventBus;
+import org.exoplatform.officeonline.ProofKeyVerifier;
 import org.exoplatform.officeonline.WOPIService;
 import org.exoplatform.officeonline.exception.OfficeOnlineException;
 import org.exoplatform.services.rest.resource.ResourceContainer;
@@ -55,7 +63,6 @@ public class EditorResource implements ResourceContainer {
    *
    * @param uriInfo the uri info
    * @param request the request
-   * @param context the context
    * @param fileId the file id
    * @return the response
    */
@@ -63,9 +70,8 @@ public class EditorResource implements ResourceContainer {
   @Path("/content/{fileId}")
   public Response content(@Context UriInfo uriInfo,
                           @Context HttpServletRequest request,
-                          @Context ServletContext context,
                           @PathParam("fileId") String fileId) {
-    EditorConfig config = (EditorConfig) context.getAttribute(WOPIResource.EDITOR_CONFIG_ATTRIBUTE);
+    EditorConfig config = (EditorConfig) request.getAttribute(WOPIResource.EDITOR_CONFIG_ATTRIBUTE);
 
     if (config == null) {
       return Response.status(Status.BAD_REQUEST)
@@ -96,6 +102,57 @@ public class EditorResource implements ResourceContainer {
     }
   }
 
+  /**
+   * Editor support of the documents for the current user, evaluated in one
+   * batch. Pages showing many documents (e.g. an activity stream) get the
+   * support and editor links of all their documents in one request.
+   *
+   * @param uriInfo the uri info
+   * @param workspace the workspace, the default one if <code>null</code>
+   * @param fileIds the file ids
+   * @param portal the portal name of editor links, no links if
+   *          <code>null</code>
+   * @return the response
+   */
+  @POST
+  @Path("/documents")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  @Produces(MediaType.APPLICATION_JSON)
+  @RolesAllowed("users")
+  public Response documentsSupport(@Context UriInfo uriInfo,
+                                   @FormParam("workspace") String workspace,
+                                   @FormParam("fileId") List<String> fileIds,
+                                   @FormParam("portal") String portal) {
+    if (fileIds == null || fileIds.isEmpty() || fileIds.size() > WOPIService.MAX_DOCUMENTS_SUPPORT) {
+      return Response.status(Status.BAD_REQUEST)
+                     .entity("{\"error\": \"From 1 to " + WOPIService.MAX_DOCUMENTS_SUPPORT + " file ids expected\"}")
+                     .type(MediaType.APPLICATION_JSON)
+                     .build();
+    }
+    URI requestUri = uriInfo.getRequestUri();
+    String baseUrl = wopiService.getPlatformUrl(requestUri.getScheme(), requestUri.getHost(), requestUri.getPort());
+    List<DocumentSupport> documents = wopiService.getDocumentsSupport(Collections.singletonMap(workspace, fileIds),
+                                                                      baseUrl,
+                                                                      portal);
+    StringBuilder json = new StringBuilder("[");
+    for (DocumentSupport document : documents) {
+      if (json.length() > 1) {
+        json.append(", ");
+      }
+      // the fragment escapes the strings and skips null link
+      json.append('{')
+          .append(new CheckFileInfo.Fragment().put("fileId", document.getFileId())
+                                              .put("documentId", document.getDocumentId())
+                                              .put("supported", document.isSupported())
+                                              .put("editable", document.isEditable())
+                                              .put("viewable", document.isViewable())
+                                              .put("link", document.getLink())
+                                              .build())
+          .append('}');
+    }
+    return Response.ok().entity(json.append(']').toString()).type(MediaType.APPLICATION_JSON).build();
+  }
+
   @GET
   @Path("/configuration/version/accumulation")
   @Produces(MediaType.APPLICATION_JSON)
@@ -116,4 +173,62 @@ public class EditorResource implements ResourceContainer {
     return Response.ok().build();
 
   }
+
+  /**
+   * Proof keys verification statistics.
+   *
+   * @return the response
+   */
+  @GET
+  @Path("/statistics/proofkeys")
+  @Produces(MediaType.APPLICATION_JSON)
+  @RolesAllowed("administrators")
+  public Response proofKeysStatistics() {
+    ProofKeyVerifier verifier = wopiService.getProofKeyVerifier();
+    if (verifier == null) {
+      return Response.status(Status.SERVICE_UNAVAILABLE)
+                     .entity("{\"error\": \"Proof key verifier not configured\"}")
+                     .type(MediaType.APPLICATION_JSON)
+                     .build();
+    }
+    return Response.ok()
+                   .entity("{\"currentKey\": " + verifier.getCurrentKeyVerifications() + ", \"oldKey\": "
+                       + verifier.getOldKeyVerifications() + ", \"failed\": " + verifier.getFailedVerifications() + "}")
+                   .type(MediaType.APPLICATION_JSON)
+                   .build();
+  }
+
+  /**
+   * Listeners delivery statistics.
+   *
+   * @return the response
+   */
+  @GET
+  @Path("/statistics/listeners")
+  @Produces(MediaType.APPLICATION_JSON)
+  @RolesAllowed("administrators")
+  public Response listenersStatistics() {
+    StringBuilder json = new StringBuilder("[");
+    for (OfficeOnlineEventBus.Subscriber listener : wopiService.getListeners()) {
+      if (json.length() > 1) {
+        json.append(", ");
+      }
+      json.append("{\"name\": \"")
+          .append(listener.getName())
+          .append("\", \"policy\": \"")
+          .append(listener.getPolicy())
+          .append("\", \"queued\": ")
+          .append(listener.getQueued())
+          .append(", \"published\": ")
+          .append(listener.getPublished())
+          .append(", \"delivered\": ")
+          .append(listener.getDelivered())
+          .append(", \"dropped\": ")
+          .append(listener.getDropped())
+          .append(", \"failed\": ")
+          .append(listener.getFailed())
+          .append('}');
+    }
+    return Response.ok().entity(json.append(']').toString()).type(MediaType.APPLICATION_JSON).build();
+  }
 }
@@ -20,14 +20,10 @@ package org.exoplatform.officeonline.rest;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Serializable;
 import java.io.StringWriter;
-import java.net.InetAddress;
 import java.nio.charset.Charset;
-import java.util.Map;
 
 import javax.jcr.RepositoryException;
-import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
@@ -46,6 +42,8 @@ import org.apache.commons.io.IOUtils;
 
 import com.beetstra.jutf7.CharsetProvider;
 
+import org.exoplatform.officeonline.CheckFileInfo;
+import org.exoplatform.officeonline.ClientHostResolver;
 import org.exoplatform.officeonline.DocumentContent;
 import org.exoplatform.officeonline.EditorConfig;
 import org.exoplatform.officeonline.RequestInfo;
@@ -56,6 +54,7 @@ import org.exoplatform.officeonline.exception.EditorLinkNotFoundException;
 import org.exoplatform.officeonline.exception.FileExtensionNotFoundException;
 import org.exoplatform.officeonline.exception.FileLockedException;
 import org.exoplatform.officeonline.exception.FileNotFoundException;
+import org.exoplatform.officeonline.exception.FileTooLargeException;
 import org.exoplatform.officeonline.exception.IllegalFileNameException;
 import org.exoplatform.officeonline.exception.InvalidFileNameException;
 import org.exoplatform.officeonline.exception.LockMismatchException;
@@ -158,6 +157,36 @@ public class WOPIResource implements ResourceContainer {
   /** The Constant TIMESTAMP. */
   protected static final String TIMESTAMP                 = "X-WOPI-TimeStamp";
 
+  /** The Constant IF_NONE_MATCH. */
+  protected static final String IF_NONE_MATCH             = "If-None-Match";
+
+  /** The Constant ETAG. */
+  protected static final String ETAG                      = "ETag";
+
+  /** The Constant RANGE. */
+  protected static final String RANGE                     = "Range";
+
+  /** The Constant CONTENT_RANGE. */
+  protected static final String CONTENT_RANGE             = "Content-Range";
+
+  /** The Constant CONTENT_LENGTH. */
+  protected static final String CONTENT_LENGTH            = "Content-Length";
+
+  /** The Constant ACCEPT_RANGES. */
+  protected static final String ACCEPT_RANGES             = "Accept-Ranges";
+
+  /** The Constant BYTES_UNIT. */
+  protected static final String BYTES_UNIT                = "bytes=";
+
+  /** The Constant PARTIAL_CONTENT. */
+  protected static final int    PARTIAL_CONTENT           = 206;
+
+  /** The Constant REQUEST_ENTITY_TOO_LARGE. */
+  protected static final int    REQUEST_ENTITY_TOO_LARGE  = 413;
+
+  /** The Constant RANGE_NOT_SATISFIABLE. */
+  protected static final int    RANGE_NOT_SATISFIABLE     = 416;
+
   /** The Constant API_VERSION. */
   protected static final String API_VERSION               = "1.1";
 
@@ -171,15 +200,20 @@ public class WOPIResource implements ResourceContainer {
   private static final Charset  UTF_8                     = new CharsetProvider().charsetForName("UTF-8");
 
   /** The editor service. */
-  protected final WOPIService   wopiService;
+  protected final WOPIService        wopiService;
+
+  /** The client host resolver. */
+  protected final ClientHostResolver hostResolver;
 
   /**
    * Instantiates a new WOPI service.
    *
    * @param wopiService the wopi service
+   * @param hostResolver the client host resolver
    */
-  public WOPIResource(WOPIService wopiService) {
+  public WOPIResource(WOPIService wopiService, ClientHostResolver hostResolver) {
     this.wopiService = wopiService;
+    this.hostResolver = hostResolver;
   }
 
   /**
@@ -187,7 +221,6 @@ public class WOPIResource implements ResourceContainer {
    *
    * @param uriInfo the uri info
    * @param request the request
-   * @param context the context
    * @param operation the operation
    * @param fileId the file id
    * @return the response
@@ -197,7 +230,6 @@ public class WOPIResource implements ResourceContainer {
   @Produces(MediaType.APPLICATION_JSON)
   public Response putFile(@Context UriInfo uriInfo,
                           @Context HttpServletRequest request,
-                          @Context ServletContext context,
                           @HeaderParam(OVERRIDE) Operation operation,
                           @PathParam("fileId") String fileId) {
 
@@ -218,15 +250,37 @@ public class WOPIResource implements ResourceContainer {
 
     if (operation == Operation.PUT) {
       try {
-        EditorConfig config = getEditorConfig(context);
+        EditorConfig config = getEditorConfig(request);
         String lockId = request.getHeader(LOCK);
-        wopiService.putFile(config, lockId, request.getInputStream());
+        long maxSize = -1;
+        String maxExpectedSize = request.getHeader(MAX_EXPECTED_SIZE);
+        if (maxExpectedSize != null) {
+          try {
+            maxSize = Long.parseLong(maxExpectedSize.trim());
+          } catch (NumberFormatException e) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Cannot parse " + MAX_EXPECTED_SIZE + " header: " + maxExpectedSize);
+            }
+          }
+        }
+        boolean saved = wopiService.putFile(config, lockId, request.getInputStream(), maxSize);
         if (LOG.isDebugEnabled()) {
-          LOG.debug("PutFile response OK. LockId: " + lockId);
+          LOG.debug("PutFile response OK. LockId: " + lockId + (saved ? "" : ", content will be saved asynchronously"));
         }
         ResponseBuilder response = Response.ok().header(LOCK, lockId);
-        addItemVersionHeader(response, config);
+        if (saved) {
+          // the version isn't known yet when saving asynchronously
+          addItemVersionHeader(response, config);
+        }
         return response.type(MediaType.APPLICATION_JSON).build();
+      } catch (FileTooLargeException e) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("File too large for putFile: {}", e.getMessage());
+        }
+        return Response.status(REQUEST_ENTITY_TOO_LARGE)
+                       .entity("{\"error\": \"" + e.getMessage() + "\"}")
+                       .type(MediaType.APPLICATION_JSON)
+                       .build();
       } catch (FileNotFoundException e) {
         if (LOG.isDebugEnabled()) {
           LOG.debug("File not found for putFile", e);
@@ -302,7 +356,6 @@ public class WOPIResource implements ResourceContainer {
    *
    * @param uriInfo the uri info
    * @param request the request
-   * @param context the context
    * @param fileId the file id
    * @return the response
    */
@@ -311,7 +364,6 @@ public class WOPIResource implements ResourceContainer {
   @Produces(MediaType.APPLICATION_JSON)
   public Response getFile(@Context UriInfo uriInfo,
                           @Context HttpServletRequest request,
-                          @Context ServletContext context,
                           @PathParam("fileId") String fileId) {
 
     if (LOG.isDebugEnabled()) {
@@ -330,7 +382,7 @@ public class WOPIResource implements ResourceContainer {
     }
 
     try {
-      EditorConfig config = getEditorConfig(context);
+      EditorConfig config = getEditorConfig(request);
       if (!fileId.equals(config.getFileId())) {
         if (LOG.isDebugEnabled()) {
           LOG.debug("Provided fileId doesn't match fileId from access token");
@@ -348,12 +400,64 @@ public class WOPIResource implements ResourceContainer {
       } catch (RepositoryException e) {
         LOG.error("Cannot get node version", e);
       }
+      String etag = version != null ? "\"" + version + "\"" : null;
+      if (version != null && matchesVersion(request.getHeader(IF_NONE_MATCH), version)) {
+        IOUtils.closeQuietly(content.getData());
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Get file response: Not Modified. Version: " + version);
+        }
+        return Response.notModified().header(ITEM_VERSION, version).header(ETAG, etag).build();
+      }
+
+      long size = content.getSize();
+      String maxExpectedSize = request.getHeader(MAX_EXPECTED_SIZE);
+      if (size >= 0 && notEmpty(maxExpectedSize)) {
+        try {
+          if (size > Long.parseLong(maxExpectedSize.trim())) {
+            IOUtils.closeQuietly(content.getData());
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Get file response: file size " + size + " exceeds " + MAX_EXPECTED_SIZE + " " + maxExpectedSize);
+            }
+            return Response.status(Status.PRECONDITION_FAILED)
+                           .entity("{\"error\": \"File is larger than expected\"}")
+                           .type(MediaType.APPLICATION_JSON)
+                           .build();
+          }
+        } catch (NumberFormatException e) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Cannot parse " + MAX_EXPECTED_SIZE + " header: " + maxExpectedSize);
+          }
+        }
+      }
+
+      long[] range = size >= 0 ? parseRange(request.getHeader(RANGE), size) : null;
+      ResponseBuilder response;
+      if (range == null) {
+        response = Response.ok(new ContentStreamingOutput(content.getData(), 0, -1));
+        if (size >= 0) {
+          response.header(CONTENT_LENGTH, String.valueOf(size));
+        }
+      } else if (range.length == 0) {
+        IOUtils.closeQuietly(content.getData());
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Get file response: Range Not Satisfiable. Range: " + request.getHeader(RANGE));
+        }
+        return Response.status(RANGE_NOT_SATISFIABLE).header(CONTENT_RANGE, "bytes */" + size).build();
+      } else {
+        long length = range[1] - range[0] + 1;
+        response = Response.status(PARTIAL_CONTENT)
+                           .entity(new ContentStreamingOutput(content.getData(), range[0], length))
+                           .header(CONTENT_LENGTH, String.valueOf(length))
+                           .header(CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + size);
+      }
       if (LOG.isDebugEnabled()) {
         LOG.debug("Get file response: OK");
       }
-      return Response.ok()
-                     .header(ITEM_VERSION, version != null ? version : "")
-                     .entity(content.getData())
+      if (etag != null) {
+        response.header(ETAG, etag);
+      }
+      return response.header(ITEM_VERSION, version != null ? version : "")
+                     .header(ACCEPT_RANGES, "bytes")
                      .type(content.getType())
                      .build();
     } catch (FileNotFoundException e) {
@@ -402,7 +506,6 @@ public class WOPIResource implements ResourceContainer {
    *
    * @param uriInfo the uri info
    * @param request the request
-   * @param context the context
    * @param operation the operation
    * @param fileId the file id
    * @return the response
@@ -412,7 +515,6 @@ public class WOPIResource implements ResourceContainer {
   @Produces(MediaType.APPLICATION_JSON)
   public Response files(@Context UriInfo uriInfo,
                         @Context HttpServletRequest request,
-                        @Context ServletContext context,
                         @HeaderParam(OVERRIDE) Operation operation,
                         @PathParam("fileId") String fileId) {
 
@@ -429,7 +531,7 @@ public class WOPIResource implements ResourceContainer {
     }
     EditorConfig config;
     try {
-      config = getEditorConfig(context);
+      config = getEditorConfig(request);
     } catch (AuthenticationFailedException e) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Authentication failed for /files/");
@@ -549,13 +651,12 @@ public class WOPIResource implements ResourceContainer {
    *
    * @param uriInfo the uri info
    * @param request the request
-   * @param context the context
    * @return the response
    */
   @GET
   @Path("/files/{fileId}")
   @Produces(MediaType.APPLICATION_JSON)
-  public Response checkFileInfo(@Context UriInfo uriInfo, @Context HttpServletRequest request, @Context ServletContext context) {
+  public Response checkFileInfo(@Context UriInfo uriInfo, @Context HttpServletRequest request) {
 
     if (LOG.isDebugEnabled()) {
       LOG.debug("WOPI Request handled: checkFileInfo");
@@ -572,12 +673,12 @@ public class WOPIResource implements ResourceContainer {
                      .build();
     }
     try {
-      EditorConfig config = getEditorConfig(context);
-      Map<String, Serializable> fileInfo = wopiService.checkFileInfo(config);
+      EditorConfig config = getEditorConfig(request);
+      CheckFileInfo fileInfo = wopiService.checkFileInfo(config);
       if (LOG.isDebugEnabled()) {
         LOG.debug("Check file info response: OK");
       }
-      return Response.ok(fileInfo).type(MediaType.APPLICATION_JSON).build();
+      return Response.ok(fileInfo.toJSON()).type(MediaType.APPLICATION_JSON).build();
     } catch (AuthenticationFailedException e) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Authentication failed for checkFileInfo");
@@ -1093,22 +1194,21 @@ public class WOPIResource implements ResourceContainer {
   /**
    * Gets the editor config.
    *
-   * @param context the context
    * @return the editor config
    * @throws AuthenticationFailedException the authentication failed exception
    * @throws EditorConfigNotFoundException the editor config not found exception
    */
-  protected EditorConfig getEditorConfig(ServletContext context) throws AuthenticationFailedException,
-                                                                 EditorConfigNotFoundException {
-    EditorConfig config = (EditorConfig) context.getAttribute(EDITOR_CONFIG_ATTRIBUTE);
+  protected EditorConfig getEditorConfig(HttpServletRequest request) throws AuthenticationFailedException,
+                                                                     EditorConfigNotFoundException {
+    EditorConfig config = (EditorConfig) request.getAttribute(EDITOR_CONFIG_ATTRIBUTE);
     if (config != null) {
       return config;
     } else {
-      Boolean authFailed = (Boolean) context.getAttribute(WRONG_TOKEN_ATTRIBUTE);
+      Boolean authFailed = (Boolean) request.getAttribute(WRONG_TOKEN_ATTRIBUTE);
       if (authFailed != null && authFailed.booleanValue()) {
         throw new AuthenticationFailedException("Access token authentication failed");
       } else {
-        throw new EditorConfigNotFoundException("Cannot get editor config from context");
+        throw new EditorConfigNotFoundException("Cannot get editor config from request");
       }
     }
   }
@@ -1144,114 +1244,18 @@ public class WOPIResource implements ResourceContainer {
    * @return the client ip addr
    */
   protected String getClientIpAddr(HttpServletRequest request) {
-    String ip = request.getHeader("X-Forwarded-For");
-    if (isValidHost(ip)) {
-      // In case of several proxy: X-Forwarded-For: client, proxy1, proxy2
-      int commaIdx = ip.indexOf(',');
-      if (commaIdx > 0 && commaIdx < ip.length() - 1) {
-        // use only client IP
-        ip = ip.substring(0, commaIdx);
-      }
-      return ip;
-    }
-    ip = request.getHeader("X-Real-IP");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    ip = request.getHeader("Proxy-Client-IP");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    ip = request.getHeader("WL-Proxy-Client-IP");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    ip = request.getHeader("HTTP_CLIENT_IP");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    ip = request.getHeader("HTTP_X_FORWARDED_FOR");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    ip = request.getHeader("HTTP_X_FORWARDED");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    ip = request.getHeader("HTTP_X_CLUSTER_CLIENT_IP");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    // http://stackoverflow.com/questions/1634782/what-is-the-most-accurate-way-to-retrieve-a-users-correct-ip-address-in-php
-    ip = request.getHeader("HTTP_FORWARDED_FOR");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    ip = request.getHeader("HTTP_FORWARDED");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    ip = request.getHeader("REMOTE_ADDR");
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    // last chance to get it from Servlet request
-    ip = request.getRemoteAddr();
-    if (isValidHost(ip)) {
-      return ip;
-    }
-    return null;
+    return hostResolver.getClientIp(request);
   }
 
   /**
-   * Gets the client host.
+   * Gets the client host. It doesn't wait for slow reverse DNS, see
+   * {@link ClientHostResolver#resolveHost(String)}.
    *
    * @param request the request
    * @return the client host
    */
   protected String getClientHost(HttpServletRequest request) {
-    String host = request.getHeader("X-Forwarded-Host");
-    if (isValidHost(host)) {
-      // This header contain requested (!) host name, not a client one, but in
-      // case of multi-layer infra
-      // (several proxy/firewall) where one of proxy hosts stands in front of
-      // actual Document Server and set
-      // this header, it will do the job.
-      return host;
-    }
-    // Oct 19, 2017: Solution based on X-Forwarded-For proposed in #3 to work
-    // correctly behind reverse proxy
-    String clientIp = request.getHeader("X-Forwarded-For");
-    if (notEmpty(clientIp)) {
-      // In case of several proxy: X-Forwarded-For: client, proxy1, proxy2
-      int commaIdx = clientIp.indexOf(',');
-      if (commaIdx > 0 && commaIdx < clientIp.length() - 1) {
-        // use only client IP
-        clientIp = clientIp.substring(0, commaIdx);
-      }
-    } else {
-      // And a case of nginx, try X-Real-IP
-      clientIp = request.getHeader("X-Real-IP");
-    }
-    if (notEmpty(clientIp)) {
-      try {
-        // XXX For this to work, in server.xml, enableLookups="true" and it can
-        // be resource consumption call
-        // Thus it could be efficient to use the hosts file of the server
-        host = InetAddress.getByName(clientIp).getHostName();
-        if (notEmpty(host)) { // host here still may be an IP due to security
-                              // restriction
-          return host;
-        }
-      } catch (Exception e) {
-        LOG.warn("Cannot obtain client hostname by its IP " + clientIp + ": " + e.getMessage());
-      }
-    }
-    host = request.getRemoteHost();
-    if (isValidHost(host)) {
-      return host;
-    }
-    return clientIp; // was null - Dec 20, 2017
+    return hostResolver.getClientHost(request);
   }
 
   /**
@@ -1276,6 +1280,83 @@ public class WOPIResource implements ResourceContainer {
     }
   }
 
+  /**
+   * Checks if given If-None-Match header value matches the file version. Both
+   * quoted entity tags (as sent in ETag header) and raw item versions (as sent
+   * in X-WOPI-ItemVersion header) are accepted.
+   *
+   * @param ifNoneMatch the If-None-Match header value
+   * @param version the file version
+   * @return true, if matches
+   */
+  protected boolean matchesVersion(String ifNoneMatch, String version) {
+    if (notEmpty(ifNoneMatch)) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.equals("*")) {
+          return true;
+        }
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.length() > 1 && tag.charAt(0) == '"' && tag.charAt(tag.length() - 1) == '"') {
+          tag = tag.substring(1, tag.length() - 1);
+        }
+        if (tag.equals(version)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses the Range header. Only single byte range is supported, for other
+   * (multiple or not bytes) ranges the whole content should be sent.
+   *
+   * @param rangeHeader the Range header value
+   * @param size the content size
+   * @return <code>null</code> if the whole content should be sent, empty array
+   *         if the range cannot be satisfied or array with first and last byte
+   *         positions of the range (inclusive)
+   */
+  protected long[] parseRange(String rangeHeader, long size) {
+    if (!notEmpty(rangeHeader) || !rangeHeader.startsWith(BYTES_UNIT) || rangeHeader.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = rangeHeader.substring(BYTES_UNIT.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      long first;
+      long last;
+      if (dash == 0) {
+        // suffix range: last N bytes
+        long suffix = Long.parseLong(spec.substring(1).trim());
+        if (suffix <= 0) {
+          return new long[0];
+        }
+        first = Math.max(0, size - suffix);
+        last = size - 1;
+      } else {
+        first = Long.parseLong(spec.substring(0, dash).trim());
+        String lastPos = spec.substring(dash + 1).trim();
+        last = lastPos.isEmpty() ? size - 1 : Math.min(Long.parseLong(lastPos), size - 1);
+        if (last < first) {
+          return null;
+        }
+      }
+      if (first >= size) {
+        return new long[0];
+      }
+      return new long[] { first, last };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
   /**
    * Check string is not empty.
    *
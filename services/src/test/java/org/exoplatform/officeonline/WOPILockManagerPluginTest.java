@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2003-2020 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.exoplatform.officeonline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.Node;
+import javax.jcr.lock.Lock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.exoplatform.officeonline.exception.LockMismatchException;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.services.cache.concurrent.ConcurrentFIFOExoCache;
+import org.exoplatform.services.cms.lock.LockService;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.core.ExtendedSession;
+import org.exoplatform.services.jcr.core.ManageableRepository;
+import org.exoplatform.services.jcr.ext.app.SessionProviderService;
+
+/**
+ * Tests of WOPI locks shared by several cluster members in one JVM: the
+ * members share a {@link LocalLockCluster} group and the lock mirror.
+ */
+public class WOPILockManagerPluginTest {
+
+  /** The Constant FILE_ID. */
+  protected static final String                           FILE_ID   = "file-1";
+
+  /** The Constant LOCK_ID. */
+  protected static final String                           LOCK_ID   = "lock-1";
+
+  /** The Constant WORKSPACE. */
+  protected static final String                           WORKSPACE = "collaboration";
+
+  /** The cluster group. */
+  protected final ConcurrentMap<String, LocalLockCluster> group     = new ConcurrentHashMap<>();
+
+  /** The started members. */
+  protected final List<WOPILockManagerPlugin>             members   = new ArrayList<>();
+
+  /** The lock mirror shared by the members. */
+  protected ExoCache<String, FileLock>                    mirror;
+
+  /** The cache service. */
+  protected CacheService                                  cacheService;
+
+  /** The jcr service. */
+  protected RepositoryService                             jcrService;
+
+  /** The node. */
+  protected Node                                          node;
+
+  /** The JCR lock state of the node. */
+  protected final AtomicBoolean                           locked    = new AtomicBoolean();
+
+  /**
+   * Sets up the mirror and the locked node.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    mirror = new ConcurrentFIFOExoCache<>(WOPILockManagerPlugin.CACHE_NAME, 100);
+    mirror.setLiveTime(3600);
+    cacheService = mock(CacheService.class);
+    doReturn(mirror).when(cacheService).getCacheInstance(WOPILockManagerPlugin.CACHE_NAME);
+
+    node = mock(Node.class, RETURNS_DEEP_STUBS);
+    Lock lock = mock(Lock.class);
+    when(lock.getLockToken()).thenReturn("token-1");
+    when(lock.getNode()).thenReturn(node);
+    when(node.getUUID()).thenReturn(FILE_ID);
+    when(node.getSession().getWorkspace().getName()).thenReturn(WORKSPACE);
+    doAnswer(invocation -> locked.get()).when(node).isLocked();
+    doAnswer(invocation -> {
+      locked.set(true);
+      return lock;
+    }).when(node).lock(true, false);
+    doAnswer(invocation -> {
+      locked.set(false);
+      return null;
+    }).when(node).unlock();
+
+    ExtendedSession session = mock(ExtendedSession.class);
+    when(session.getNodeByUUID(FILE_ID)).thenReturn(node);
+    ManageableRepository repository = mock(ManageableRepository.class, RETURNS_DEEP_STUBS);
+    when(repository.getSystemSession(anyString())).thenReturn(session);
+    jcrService = mock(RepositoryService.class);
+    when(jcrService.getCurrentRepository()).thenReturn(repository);
+  }
+
+  /**
+   * Stops the members.
+   */
+  @After
+  public void tearDown() {
+    for (WOPILockManagerPlugin member : members) {
+      member.expiresExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * The member refreshing the lock takes it over, the previous owner forgets
+   * it.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testRefreshTakesOverLock() throws Exception {
+    WOPILockManagerPlugin a = start("a");
+    WOPILockManagerPlugin b = start("b");
+    assertTrue(a.lock(node, LOCK_ID));
+    assertEquals("a", mirror.get(FILE_ID).getOwner());
+    // locking again refreshes the lock
+    assertFalse(a.lock(node, LOCK_ID));
+
+    b.refreshLock(node, LOCK_ID);
+    assertEquals("b", mirror.get(FILE_ID).getOwner());
+    assertTrue(b.locks.containsKey(FILE_ID));
+    assertEquals(LOCK_ID, a.getLock(node).getLockId());
+    assertFalse(a.locks.containsKey(FILE_ID));
+
+    // a local refresh doesn't write the mirror
+    long mirrored = mirror.get(FILE_ID).getExpires();
+    Thread.sleep(5);
+    b.refreshLock(node, LOCK_ID);
+    assertEquals(mirrored, mirror.get(FILE_ID).getExpires());
+    assertTrue(b.locks.get(FILE_ID).getExpires() > mirrored);
+
+    expireAll();
+    verify(node, times(1)).unlock();
+  }
+
+  /**
+   * The stopped member hands its lock over, the new owner keeps the lock
+   * expiration.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testHandOverOnStop() throws Exception {
+    WOPILockManagerPlugin a = start("a");
+    WOPILockManagerPlugin b = start("b");
+    WOPILockManagerPlugin c = start("c");
+    a.lock(node, LOCK_ID);
+    long expires = a.locks.get(FILE_ID).getExpires();
+
+    a.stop();
+    members.remove(a);
+    await();
+
+    FileLock handedOver = owned();
+    assertNotNull(handedOver);
+    assertEquals(expires, handedOver.getExpires());
+    assertEquals(handedOver.getOwner(), mirror.get(FILE_ID).getOwner());
+    assertTrue(b.locks.containsKey(FILE_ID) != c.locks.containsKey(FILE_ID));
+
+    expireAll();
+    verify(node, times(1)).unlock();
+  }
+
+  /**
+   * The lock of a failed member is adopted by exactly one of the other members.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testAdoptionOfFailedMember() throws Exception {
+    WOPILockManagerPlugin a = start("a");
+    start("b");
+    start("c");
+    a.lock(node, LOCK_ID);
+
+    // fails without hand over
+    a.expiresExecutor.shutdownNow();
+    members.remove(a);
+    group.remove("a");
+    group.values().iterator().next().notifyMembers();
+    await();
+
+    FileLock adopted = owned();
+    assertNotNull(adopted);
+    assertEquals(adopted.getOwner(), mirror.get(FILE_ID).getOwner());
+    assertEquals(LOCK_ID, adopted.getLockId());
+
+    expireAll();
+    verify(node, times(1)).unlock();
+    assertFalse(locked.get());
+    assertNull(mirror.get(FILE_ID));
+  }
+
+  /**
+   * The expired lock is released by its owner only.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testExpiryByOneOwner() throws Exception {
+    WOPILockManagerPlugin a = start("a");
+    start("b");
+    start("c");
+    a.lock(node, LOCK_ID);
+
+    // not expired yet
+    for (WOPILockManagerPlugin member : members) {
+      member.expiresExecutor.submit(() -> member.removeExpired(System.currentTimeMillis())).get();
+    }
+    verify(node, times(0)).unlock();
+
+    expireAll();
+    verify(node, times(1)).unlock();
+    for (WOPILockManagerPlugin member : members) {
+      assertFalse(member.locks.containsKey(FILE_ID));
+    }
+  }
+
+  /**
+   * A released expired lock cannot be refreshed.
+   *
+   * @throws Exception the exception
+   */
+  @Test(expected = LockMismatchException.class)
+  public void testRefreshOfReleasedLockFails() throws Exception {
+    WOPILockManagerPlugin a = start("a");
+    a.lock(node, LOCK_ID);
+    expireAll();
+    verify(node, times(1)).unlock();
+    a.refreshLock(node, LOCK_ID);
+  }
+
+  /**
+   * Starts a member and waits for the cluster rebalance.
+   *
+   * @param name the member name
+   * @return the member
+   * @throws Exception the exception
+   */
+  protected WOPILockManagerPlugin start(String name) throws Exception {
+    WOPILockManagerPlugin member = new WOPILockManagerPlugin(cacheService,
+                                                             mock(SessionProviderService.class),
+                                                             jcrService,
+                                                             mock(LockService.class),
+                                                             new LocalLockCluster(group, name));
+    members.add(member);
+    await();
+    return member;
+  }
+
+  /**
+   * Waits for the rebalance of the running members.
+   *
+   * @throws Exception the exception
+   */
+  protected void await() throws Exception {
+    for (WOPILockManagerPlugin member : members) {
+      member.expiresExecutor.submit(() -> {
+      }).get();
+    }
+  }
+
+  /**
+   * Gets the lock owned by exactly one running member.
+   *
+   * @return the owned lock or <code>null</code>
+   */
+  protected FileLock owned() {
+    FileLock owned = null;
+    int owners = 0;
+    for (WOPILockManagerPlugin member : members) {
+      FileLock fileLock = member.locks.get(FILE_ID);
+      if (fileLock != null) {
+        owned = fileLock;
+        owners++;
+      }
+    }
+    assertTrue("Lock owners: " + owners, owners <= 1);
+    return owned;
+  }
+
+  /**
+   * Runs the lock expiration on all running members after the lock expires.
+   *
+   * @throws Exception the exception
+   */
+  protected void expireAll() throws Exception {
+    long later = System.currentTimeMillis() + WOPILockManagerPlugin.LOCK_EXPIRES + 2 * WOPILockManagerPlugin.EXPIRES_TICK;
+    for (WOPILockManagerPlugin member : members) {
+      member.expiresExecutor.submit(() -> member.removeExpired(later)).get();
+    }
+  }
+}